@@ -0,0 +1,17 @@
+// JMX view of AsyncExecutor; kept in its own file because JMX requires a public interface.
+public interface AsyncExecutorMXBean {
+    long getSubmitted();
+    long getExecuted();
+    long getDropped();
+    long getFailed();
+    long getRetried();
+    int getQueueDepth();
+    long getActiveWorkers();
+    long getQueueWaitP50Micros();
+    long getQueueWaitP99Micros();
+    long getQueueWaitMaxMicros();
+    long getExecutionP50Micros();
+    long getExecutionP99Micros();
+    long getExecutionP999Micros();
+    long getExecutionMaxMicros();
+}
@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Offline decoder for files written with BinaryRecordEncoder; prints them in the SimpleFormatter layout.
+public class BinaryLogDecoder {
+
+    static void decode(ByteBuffer in, PrintStream out)
+    {
+        SimpleFormatter formatter=new SimpleFormatter();
+        LogLevel[] levels=LogLevel.values();
+        List<String> templates=new ArrayList<>();
+        LogMessage logMessage=new LogMessage();
+        StringBuilder line=new StringBuilder(256);
+        while(in.hasRemaining())
+        {
+            byte type=in.get();
+            if(type==(byte)(BinaryRecordEncoder.MAGIC>>>24))
+            {
+                in.position(in.position()-1);
+                if(in.getInt()!=BinaryRecordEncoder.MAGIC || in.get()!=BinaryRecordEncoder.VERSION)
+                    throw new IllegalStateException("Unsupported binary log header at "+in.position());
+                templates.clear();
+            }
+            else if(type==BinaryRecordEncoder.TEMPLATE)
+            {
+                int id=BinaryRecordEncoder.getVarInt(in);
+                String template=readText(in);
+                while(templates.size()<=id)
+                    templates.add(null);
+                templates.set(id, template);
+            }
+            else if(type==BinaryRecordEncoder.EVENT || type==BinaryRecordEncoder.INLINE_EVENT)
+            {
+                long epochMillis=in.getLong();
+                LogLevel level=levels[in.get()];
+                String template=type==BinaryRecordEncoder.EVENT ? templates.get(BinaryRecordEncoder.getVarInt(in)) : readText(in);
+                Object[] args=new Object[in.get() & 0xFF];
+                for(int i=0;i<args.length;i++)
+                    args[i]=readText(in);
+                logMessage.set(template, level, epochMillis);
+                logMessage.setArgs(args);
+                line.setLength(0);
+                formatter.formatTo(logMessage, line);
+                out.println(line);
+            }
+            else
+                throw new IllegalStateException("Unknown record type "+type+" at "+(in.position()-1));
+        }
+    }
+
+    private static String readText(ByteBuffer in)
+    {
+        int length=BinaryRecordEncoder.getVarInt(in);
+        String text=new String(in.array(), in.arrayOffset()+in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position()+length);
+        return text;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length!=1)
+        {
+            System.out.println("Usage: java BinaryLogDecoder <binary log file>");
+            return;
+        }
+        try(FileChannel channel=FileChannel.open(Paths.get(args[0]), StandardOpenOption.READ)) {
+            ByteBuffer in=ByteBuffer.allocate((int) channel.size());
+            while(in.hasRemaining() && channel.read(in)>=0);
+            in.flip();
+            decode(in, System.out);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+// Redrives dead letters of a persistent queue after one of their msgIds was enqueued again, and reopens a DLQ spill
+// file whose head was partly taken, checking that both pick up where they should.
+// Usage: java DeadLetterRedriveTest
+public class DeadLetterRedriveTest {
+
+    static void check(boolean condition, String failure)
+    {
+        if(!condition)
+            throw new IllegalStateException(failure);
+    }
+
+    // "x" and "y" are dead-lettered, then a fresh "x" is sent: the redrive drops the stale "x" and still moves "y".
+    static void redriveSkipsLiveDuplicate() throws IOException, InterruptedException {
+        Path logDirectory=Files.createTempDirectory("dead-letter-redrive");
+        MessageQueueService service=new MessageQueueService(1, 1, 5, logDirectory.toString(), 1<<16);
+        try {
+            service.addMessage(new Msg("x", "first x"));
+            service.addMessage(new Msg("y", "first y"));
+            while(service.getDeadLetterCount()<2)
+            {
+                service.poll(10);
+                Thread.sleep(10);
+            }
+            service.addMessage(new Msg("x", "second x"));
+            int taken=service.messageQueue.redriveDeadLetters(10);
+            check(taken==2, "expected both dead letters taken, got "+taken);
+            check(service.getDeadLetterCount()==0, "DLQ still holds "+service.getDeadLetterCount());
+            check(service.getRedriveDuplicates()==1, "expected 1 dropped duplicate, got "+service.getRedriveDuplicates());
+            List<Msg> delivered=service.poll(10);
+            check(delivered.size()==2, "expected x and y delivered, got "+delivered.size());
+            for(Msg message:delivered)
+                check(!message.getPayload().equals("first x"), "the stale x was redriven");
+        } finally {
+            service.shutDown();
+        }
+    }
+
+    // The spill file keeps its read position in its header, so a reopened DLQ starts after what was taken.
+    static void spillReopensAtReadPosition() throws IOException {
+        Path spill=Files.createTempDirectory("dead-letter-spill").resolve("dead-letters.spill");
+        DeadLetterQueue dlq=new DeadLetterQueue(10, spill);
+        for(int i=0;i<1000;i++)
+            dlq.addMessage(new Msg("m"+i, i%3==0 ? null : "payload "+i));
+        dlq.remove(dlq.peek(300).size());
+        dlq.close();
+
+        DeadLetterQueue reopened=new DeadLetterQueue(10, spill);
+        try {
+            check(reopened.size()==700, "expected 700 after reopen, got "+reopened.size());
+            List<Msg> head=reopened.peek(2);
+            check(head.get(0).getMsgId().equals("m300") && head.get(0).getPayload()==null,
+                    "expected m300 with a null payload first, got "+head.get(0));
+            check(head.get(1).getPayload().equals("payload 301"), "expected payload 301 second, got "+head.get(1));
+            reopened.remove(700);
+            check(reopened.size()==0 && Files.size(spill)==8, "expected an empty spill file after draining");
+        } finally {
+            reopened.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        PrintStream report=System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            redriveSkipsLiveDuplicate();
+            spillReopensAtReadPosition();
+        } finally {
+            System.setOut(report);
+        }
+        report.println("Redrive skipped a live duplicate and the spill file reopened at its read position");
+    }
+}
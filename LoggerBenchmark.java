@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+// Formats every record into a reused builder and keeps only its length, so the sink itself costs next to nothing.
+class FormattingNullAppender implements Appender{
+    private final LogFormatter logFormatter=new SimpleFormatter();
+    private final ThreadLocal<StringBuilder> line=ThreadLocal.withInitial(() -> new StringBuilder(256));
+    volatile long sink;
+
+    @Override
+    public void append(LogMessage logMessage) {
+        StringBuilder out=line.get();
+        out.setLength(0);
+        logFormatter.formatTo(logMessage, out);
+        sink=out.length();
+    }
+}
+
+// Baseline for logging changes. Every scenario runs for a fixed time on N producer threads and reports throughput,
+// sampled per-call latency percentiles and bytes allocated per call by the producers.
+// Usage: java LoggerBenchmark [durationMillis]
+public class LoggerBenchmark {
+
+    static final int[] APPENDER_COUNTS={1, 2, 4};
+    static final int[] QUEUE_SIZES={1, 64, 1024, 65536};
+    static final int[] PRODUCER_THREADS={1, 2, 4, 8, 16, 32};
+    // Timing every call would dominate the cheapest paths, so one call in LATENCY_SAMPLE_RATE is timed.
+    static final int LATENCY_SAMPLE_RATE=8;
+
+    static final PrintStream report=System.out;
+    static final com.sun.management.ThreadMXBean threadMXBean=
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    static class Result{
+        final long operations;
+        final long elapsedNanos;
+        final long allocatedBytes;
+        final HistogramSnapshot latency;
+        Result(long operations, long elapsedNanos, long allocatedBytes, HistogramSnapshot latency)
+        {
+            this.operations=operations;
+            this.elapsedNanos=elapsedNanos;
+            this.allocatedBytes=allocatedBytes;
+            this.latency=latency;
+        }
+    }
+
+    static Result run(int threads, long durationMillis, Runnable operation) throws InterruptedException {
+        LongAdder operations=new LongAdder();
+        LongAdder allocatedBytes=new LongAdder();
+        LatencyHistogram latency=new LatencyHistogram();
+        CountDownLatch start=new CountDownLatch(1);
+        List<Thread> producers=new ArrayList<>();
+        long[] deadline=new long[1];
+        for(int t=0;t<threads;t++)
+        {
+            Thread producer=new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long before=threadMXBean.getCurrentThreadAllocatedBytes();
+                long count=0;
+                while(System.nanoTime()<deadline[0])
+                {
+                    if(count%LATENCY_SAMPLE_RATE==0)
+                    {
+                        long begin=System.nanoTime();
+                        operation.run();
+                        latency.record(System.nanoTime()-begin);
+                    }
+                    else
+                        operation.run();
+                    count++;
+                }
+                allocatedBytes.add(threadMXBean.getCurrentThreadAllocatedBytes()-before);
+                operations.add(count);
+            });
+            producers.add(producer);
+            producer.start();
+        }
+        long begin=System.nanoTime();
+        deadline[0]=begin+durationMillis*1_000_000;
+        start.countDown();
+        for(Thread producer:producers)
+            producer.join();
+        return new Result(operations.sum(), System.nanoTime()-begin, allocatedBytes.sum(), latency.snapshot());
+    }
+
+    static void print(String scenario, int threads, Result result)
+    {
+        report.printf("%-52s %3d threads %,14.0f ops/s  p50=%,8d ns  p99=%,10d ns  p999=%,12d ns  %8.2f B/op%n",
+                scenario, threads, result.operations*1e9/result.elapsedNanos, result.latency.getP50(),
+                result.latency.getP99(), result.latency.getP999(), (double) result.allocatedBytes/Math.max(1, result.operations));
+    }
+
+    static void loggerScenarios(Logger logger, long durationMillis) throws InterruptedException {
+        for(int appenderCount:APPENDER_COUNTS)
+        {
+            List<Appender> appenders=new ArrayList<>();
+            for(int i=0;i<appenderCount;i++)
+            {
+                Appender appender=new FormattingNullAppender();
+                appenders.add(appender);
+                logger.addAppender(appender);
+            }
+            for(int threads:PRODUCER_THREADS)
+            {
+                run(threads, durationMillis/4, () -> logger.info("Benchmark message for {}", "user"));
+                print("Logger.log -> "+appenderCount+" appender(s)", threads,
+                        run(threads, durationMillis, () -> logger.info("Benchmark message for {}", "user")));
+            }
+            for(Appender appender:appenders)
+                logger.removeAppender(appender);
+        }
+    }
+
+    // AsyncAppender and AsyncExecutor print traces and drop notices; they are measured as they are, with stdout discarded.
+    static void asyncAppenderScenarios(Logger logger, long durationMillis) throws InterruptedException {
+        for(BackPressurePolicy policy:BackPressurePolicy.values())
+        {
+            for(int queueSize:QUEUE_SIZES)
+            {
+                for(int threads:PRODUCER_THREADS)
+                {
+                    AsyncExecutor asyncExecutor=new AsyncExecutor(queueSize, 2, policy, new RetryPolicy(0, 0));
+                    AsyncAppender appender=new AsyncAppender(new FormattingNullAppender(), asyncExecutor);
+                    logger.addAppender(appender);
+                    Runnable operation=() -> {
+                        try {
+                            logger.info("Benchmark message for {}", "user");
+                        } catch (IllegalStateException rejected) {
+                            // BackPressurePolicy.FAIL
+                        }
+                    };
+                    run(threads, durationMillis/4, operation);
+                    Result result=run(threads, durationMillis, operation);
+                    logger.removeAppender(appender);
+                    asyncExecutor.shutDown();
+                    print("AsyncAppender "+policy+" queue="+queueSize, threads, result);
+                }
+            }
+        }
+    }
+
+    // Single-threaded allocation check for the garbage-free file paths.
+    static void fileScenarios(Logger logger, long durationMillis) throws IOException, InterruptedException {
+        Path file=Files.createTempFile("logger-benchmark", ".log");
+        GroupCommitFileAppender appender=new GroupCommitFileAppender(file.toString(), new SimpleFormatter(),
+                64*1024, 100, FsyncPolicy.NEVER);
+        logger.addAppender(appender);
+        run(1, durationMillis/4, () -> logger.info("Benchmark message for {}", "user"));
+        print("info -> GroupCommitFileAppender", 1, run(1, durationMillis, () -> logger.info("Benchmark message for {}", "user")));
+        logger.setLevel(LogLevel.INFO);
+        print("disabled debug", 1, run(1, durationMillis, () -> logger.debug("Benchmark message for {}", "user")));
+        logger.setLevel(LogLevel.DEBUG);
+        logger.removeAppender(appender);
+        appender.close();
+        Files.delete(file);
+
+        Path binaryFile=Files.createTempFile("logger-benchmark", ".bin");
+        GroupCommitFileAppender binaryAppender=new GroupCommitFileAppender(binaryFile.toString(), new BinaryRecordEncoder(),
+                64*1024, 100, FsyncPolicy.NEVER);
+        logger.addAppender(binaryAppender);
+        run(1, durationMillis/4, () -> logger.info("Benchmark message for {}", "user"));
+        print("info -> binary GroupCommitFileAppender", 1, run(1, durationMillis, () -> logger.info("Benchmark message for {}", "user")));
+        logger.removeAppender(binaryAppender);
+        binaryAppender.close();
+        Files.delete(binaryFile);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long durationMillis=args.length>0 ? Long.parseLong(args[0]) : 1000;
+        Logger logger=Logger.getInstance();
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            fileScenarios(logger, durationMillis);
+            loggerScenarios(logger, durationMillis);
+            asyncAppenderScenarios(logger, durationMillis);
+        } finally {
+            System.setOut(report);
+        }
+    }
+}
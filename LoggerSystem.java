@@ -3,13 +3,45 @@ import lombok.Setter;
 import lombok.extern.java.Log;
 
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 enum LogLevel{
     DEBUG,
@@ -21,67 +53,880 @@ enum LogLevel{
         return newLevel.ordinal()>=currentLevel.ordinal();
     }
 }
+// Mutable so the logger can reuse one instance per thread; anything that keeps it past append() must copy it.
 class LogMessage{
     String msg;
-    LocalDateTime timeStamp;
+    long epochMillis;
     LogLevel logLevel;
+    // Arguments for "{}" placeholders in msg; held in a reused array and substituted only when a formatter renders it.
+    Object[] args=new Object[2];
+    int argCount;
+    LogMessage()
+    {
+    }
     LogMessage(String msg, LogLevel logLevel)
+    {
+        set(msg, logLevel, System.currentTimeMillis());
+    }
+
+    void set(String msg, LogLevel logLevel, long epochMillis)
     {
         this.msg=msg;
         this.logLevel=logLevel;
-        this.timeStamp=LocalDateTime.now();
+        this.epochMillis=epochMillis;
+        for(int i=0;i<argCount;i++)
+            args[i]=null;
+        argCount=0;
+    }
+
+    void setArgs(Object arg)
+    {
+        args[0]=arg;
+        argCount=1;
+    }
+
+    void setArgs(Object arg1, Object arg2)
+    {
+        args[0]=arg1;
+        args[1]=arg2;
+        argCount=2;
+    }
+
+    void setArgs(Object[] values)
+    {
+        if(values.length>args.length)
+            args=new Object[values.length];
+        System.arraycopy(values, 0, args, 0, values.length);
+        argCount=values.length;
+    }
+
+    void copyFrom(LogMessage other)
+    {
+        set(other.msg, other.logLevel, other.epochMillis);
+        if(other.argCount>args.length)
+            args=new Object[other.argCount];
+        System.arraycopy(other.args, 0, args, 0, other.argCount);
+        argCount=other.argCount;
+    }
+
+    void formatMessageTo(StringBuilder out)
+    {
+        int start=0;
+        for(int arg=0;arg<argCount;arg++)
+        {
+            int placeholder=msg.indexOf("{}", start);
+            if(placeholder<0)
+                break;
+            out.append(msg, start, placeholder).append(args[arg]);
+            start=placeholder+2;
+        }
+        out.append(msg, start, msg.length());
+    }
+}
+
+// Renders epoch millis as local date-time text; the seconds prefix is rebuilt only when the second changes.
+class TimestampRenderer{
+    private static final DateTimeFormatter SECONDS=DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+    private static final class Second{
+        final long epochSecond;
+        final String text;
+        Second(long epochSecond)
+        {
+            this.epochSecond=epochSecond;
+            this.text=SECONDS.format(LocalDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), ZoneId.systemDefault()));
+        }
+    }
+    private volatile Second current=new Second(0);
+
+    void appendTo(long epochMillis, StringBuilder out)
+    {
+        long epochSecond=Math.floorDiv(epochMillis, 1000);
+        Second second=current;
+        if(second.epochSecond!=epochSecond)
+        {
+            second=new Second(epochSecond);
+            current=second;
+        }
+        int millis=Math.floorMod(epochMillis, 1000);
+        out.append(second.text).append('.')
+                .append((char)('0'+millis/100)).append((char)('0'+millis/10%10)).append((char)('0'+millis%10));
     }
 }
 interface LogFormatter{
     String format(LogMessage logMessage);
+
+    // Garbage-free variant: appends the record to a builder owned by the caller.
+    default void formatTo(LogMessage logMessage, StringBuilder out)
+    {
+        out.append(format(logMessage));
+    }
 }
 class SimpleFormatter implements LogFormatter{
 
+    private final TimestampRenderer timestampRenderer=new TimestampRenderer();
+
     @Override
     public String format(LogMessage logMessage) {
-      return logMessage.timeStamp +" [" + logMessage.logLevel + " ] "+logMessage.msg;
+        StringBuilder out=new StringBuilder(64);
+        formatTo(logMessage, out);
+        return out.toString();
+    }
+
+    @Override
+    public void formatTo(LogMessage logMessage, StringBuilder out) {
+        timestampRenderer.appendTo(logMessage.epochMillis, out);
+        out.append(" [").append(logMessage.logLevel.name()).append(" ] ");
+        logMessage.formatMessageTo(out);
     }
 }
 interface Appender{
+    // logMessage is reused by the caller once this returns.
     void append(LogMessage logMessage);
+
+    // Sinks that can write several records in one go override this.
+    default void appendBatch(List<LogMessage> logMessages)
+    {
+        for(LogMessage logMessage:logMessages)
+            append(logMessage);
+    }
 }
 
 enum BackPressurePolicy{
     BLOCK,
     DROP,
-    FAIL
+    FAIL,
+    ADAPTIVE
+}
+
+// Settings for BackPressurePolicy.ADAPTIVE. Critical tasks are never shed: they may use the whole queue and block
+// when it is full. Other tasks are all accepted below the high-water mark, 1 in sampleRate above it, and never
+// take the reserved slice at the top of the queue.
+@Getter
+class AdaptiveBackPressure{
+    static final AdaptiveBackPressure DEFAULT=new AdaptiveBackPressure(0.75, 10, 0.1);
+
+    private final double highWaterMark;
+    private final int sampleRate;
+    private final double reservedFraction;
+    AdaptiveBackPressure(double highWaterMark, int sampleRate, double reservedFraction)
+    {
+        this.highWaterMark=highWaterMark;
+        this.sampleRate=sampleRate;
+        this.reservedFraction=reservedFraction;
+    }
+
+    boolean admitsNonCritical(int depth, int capacity)
+    {
+        if(depth>=capacity-(int)(capacity*reservedFraction))
+            return false;
+        return depth<(int)(capacity*highWaterMark) || ThreadLocalRandom.current().nextInt(sampleRate)==0;
+    }
+}
+
+interface DeadLetterHandler{
+    void onExhausted(AsyncTask task, Exception lastFailure);
 }
 
 @Getter
 class RetryPolicy{
     private final int maxRetries;
     private final long delayMilliSeconds;
+    private final double backoffMultiplier;
+    private final long maxDelayMilliSeconds;
+    // Fraction of the computed delay that is randomly taken off, so failed tasks do not retry in lockstep.
+    private final double jitterFactor;
+    private final DeadLetterHandler deadLetterHandler;
     RetryPolicy(int maxRetries, long delayMilliSeconds)
+    {
+        this(maxRetries, delayMilliSeconds, 1.0, delayMilliSeconds, 0.0, (task, lastFailure) -> {});
+    }
+    RetryPolicy(int maxRetries, long delayMilliSeconds, double backoffMultiplier, long maxDelayMilliSeconds,
+                double jitterFactor, DeadLetterHandler deadLetterHandler)
     {
         this.maxRetries=maxRetries;
         this.delayMilliSeconds=delayMilliSeconds;
+        this.backoffMultiplier=backoffMultiplier;
+        this.maxDelayMilliSeconds=maxDelayMilliSeconds;
+        this.jitterFactor=jitterFactor;
+        this.deadLetterHandler=deadLetterHandler;
+    }
+
+    // attempt starts at 1 for the first retry.
+    long delayForAttempt(int attempt)
+    {
+        double delay=Math.min(maxDelayMilliSeconds, delayMilliSeconds*Math.pow(backoffMultiplier, attempt-1));
+        delay-=delay*jitterFactor*ThreadLocalRandom.current().nextDouble();
+        return (long) delay;
     }
 }
 interface AsyncTask{
     void execute() throws Exception;
 
+    // Critical tasks (errors, OTPs) are never shed by BackPressurePolicy.ADAPTIVE.
+    default boolean isCritical()
+    {
+        return false;
+    }
+}
+
+// A failed task waiting for its next attempt; only created once a task has failed.
+class RetryAttempt implements AsyncTask{
+    final AsyncTask task;
+    int attempt;
+    RetryAttempt(AsyncTask task)
+    {
+        this.task=task;
+    }
+
+    @Override
+    public void execute() throws Exception {
+        task.execute();
+    }
+
+    @Override
+    public boolean isCritical() {
+        return task.isCritical();
+    }
+}
+
+interface BatchRunner{
+    void run(List<AsyncTask> tasks) throws Exception;
+}
+
+// Tasks a batch mode worker drained together. Retried, timed and dead-lettered as one task, so a retry runs
+// exactly the same tasks again.
+class TaskBatch implements AsyncTask{
+    final List<AsyncTask> tasks;
+    private final BatchRunner runner;
+    TaskBatch(List<AsyncTask> tasks, BatchRunner runner)
+    {
+        this.tasks=tasks;
+        this.runner=runner;
+    }
+
+    @Override
+    public void execute() throws Exception {
+        runner.run(tasks);
+    }
+
+    @Override
+    public boolean isCritical() {
+        for(AsyncTask task:tasks)
+            if(task.isCritical())
+                return true;
+        return false;
+    }
+}
+
+// Where AsyncExecutor.submit hands accepted tasks: BLOCK waits in put, the other policies use offer.
+interface TaskSink{
+    boolean offer(AsyncTask task);
+    void put(AsyncTask task) throws InterruptedException;
+    boolean isEmpty();
+    int size();
+    int capacity();
+}
+
+// A sink that platform workers drain.
+interface TaskQueue extends TaskSink{
+    AsyncTask poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    // The worker loop's wait: may return null early, and returns promptly once the queue is closed.
+    AsyncTask take() throws InterruptedException;
+
+    // Moves up to maxTasks already queued tasks into batch without waiting; returns how many were moved.
+    int drainTo(List<AsyncTask> batch, int maxTasks);
+
+    // Wakes every worker waiting in take(); called on shutdown once no new tasks are expected.
+    void close();
+}
+
+class BlockingTaskQueue implements TaskQueue{
+    private final BlockingQueue<AsyncTask> queue;
+    private final int capacity;
+    BlockingTaskQueue(int capacity)
+    {
+        this.queue=new LinkedBlockingQueue<>(capacity);
+        this.capacity=capacity;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public boolean offer(AsyncTask task) {
+        return queue.offer(task);
+    }
+
+    @Override
+    public void put(AsyncTask task) throws InterruptedException {
+        queue.put(task);
+    }
+
+    @Override
+    public AsyncTask poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
+    // Keeps the original timed wait, so shutdown needs no sentinel task; idle workers wake 5 times a second.
+    @Override
+    public AsyncTask take() throws InterruptedException {
+        return queue.poll(200, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int drainTo(List<AsyncTask> batch, int maxTasks) {
+        return queue.drainTo(batch, maxTasks);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+}
+
+enum WaitStrategy{
+    BUSY_SPIN,
+    YIELD,
+    PARK;
+
+    private static final int SPIN_TRIES=100;
+
+    // One back-off step while the ring is empty (consumers) or full (producers).
+    // PARK registers the thread in waiters and re-checks ready before parking, so a publish racing with it is never missed.
+    void backOff(int attempt, Set<Thread> waiters, BooleanSupplier ready, long maxParkNanos)
+    {
+        if(this==BUSY_SPIN || attempt<SPIN_TRIES)
+        {
+            Thread.onSpinWait();
+            return;
+        }
+        if(this==YIELD)
+        {
+            Thread.yield();
+            return;
+        }
+        Thread current=Thread.currentThread();
+        waiters.add(current);
+        if(!ready.getAsBoolean())
+        {
+            // Long.MAX_VALUE: no timeout, only an unpark from the other side ends the wait.
+            if(maxParkNanos==Long.MAX_VALUE)
+                LockSupport.park(this);
+            else
+                LockSupport.parkNanos(this, maxParkNanos);
+        }
+        waiters.remove(current);
+    }
+}
+
+// Bounded multi-producer/multi-consumer ring. Every slot carries a sequence number: a producer claims
+// position p by CAS on tail once slot sequence == p, a consumer claims it once sequence == p+1.
+class RingBufferTaskQueue implements TaskQueue{
+    private final AtomicReferenceArray<AsyncTask> slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head=new AtomicLong();
+    private final AtomicLong tail=new AtomicLong();
+    private final WaitStrategy waitStrategy;
+    private final Set<Thread> parkedConsumers=ConcurrentHashMap.newKeySet();
+    private final Set<Thread> parkedProducers=ConcurrentHashMap.newKeySet();
+    private final BooleanSupplier readable=()->!isEmpty();
+    private volatile boolean closed;
+    private final BooleanSupplier readableOrClosed=()->!isEmpty() || closed;
+    private final BooleanSupplier writable=this::hasCapacity;
+
+    RingBufferTaskQueue(int capacity, WaitStrategy waitStrategy)
+    {
+        int size=capacity<=2 ? 2 : Integer.highestOneBit(capacity-1)<<1;
+        this.slots=new AtomicReferenceArray<>(size);
+        this.sequences=new AtomicLongArray(size);
+        for(int i=0;i<size;i++)
+            sequences.set(i,i);
+        this.mask=size-1;
+        this.waitStrategy=waitStrategy;
+    }
+
+    @Override
+    public boolean offer(AsyncTask task) {
+        while(true)
+        {
+            long position=tail.get();
+            int index=(int)(position & mask);
+            long diff=sequences.get(index)-position;
+            if(diff==0)
+            {
+                if(tail.compareAndSet(position,position+1))
+                {
+                    slots.set(index,task);
+                    sequences.set(index,position+1);
+                    wakeUp(parkedConsumers);
+                    return true;
+                }
+            }
+            else if(diff<0)
+                return false;
+        }
+    }
+
+    @Override
+    public void put(AsyncTask task) throws InterruptedException {
+        int attempt=0;
+        while(!offer(task))
+        {
+            if(Thread.interrupted())
+                throw new InterruptedException();
+            waitStrategy.backOff(attempt++, parkedProducers, writable, TimeUnit.MILLISECONDS.toNanos(200));
+        }
+    }
+
+    AsyncTask poll()
+    {
+        while(true)
+        {
+            long position=head.get();
+            int index=(int)(position & mask);
+            long diff=sequences.get(index)-(position+1);
+            if(diff==0)
+            {
+                if(head.compareAndSet(position,position+1))
+                {
+                    AsyncTask task=slots.get(index);
+                    slots.set(index,null);
+                    sequences.set(index,position+mask+1);
+                    wakeUp(parkedProducers);
+                    return task;
+                }
+            }
+            else if(diff<0)
+                return null;
+        }
+    }
+
+    @Override
+    public AsyncTask poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline=System.nanoTime()+unit.toNanos(timeout);
+        int attempt=0;
+        while(true)
+        {
+            AsyncTask task=poll();
+            if(task!=null)
+                return task;
+            long remaining=deadline-System.nanoTime();
+            if(remaining<=0)
+                return null;
+            if(Thread.interrupted())
+                throw new InterruptedException();
+            waitStrategy.backOff(attempt++, parkedConsumers, readable, remaining);
+        }
+    }
+
+    // With PARK an idle worker sleeps without a timeout until offer or close unparks it.
+    @Override
+    public AsyncTask take() throws InterruptedException {
+        if(closed)
+            return poll(200, TimeUnit.MILLISECONDS);
+        int attempt=0;
+        while(true)
+        {
+            AsyncTask task=poll();
+            if(task!=null || closed)
+                return task;
+            if(Thread.interrupted())
+                throw new InterruptedException();
+            waitStrategy.backOff(attempt++, parkedConsumers, readableOrClosed, Long.MAX_VALUE);
+        }
+    }
+
+    @Override
+    public int drainTo(List<AsyncTask> batch, int maxTasks) {
+        int drained=0;
+        AsyncTask task;
+        while(drained<maxTasks && (task=poll())!=null)
+        {
+            batch.add(task);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    public void close() {
+        closed=true;
+        wakeUp(parkedConsumers);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        long position=head.get();
+        return sequences.get((int)(position & mask))!=position+1;
+    }
+
+    @Override
+    public int capacity() {
+        return mask+1;
+    }
+
+    // Approximate while producers and consumers are moving.
+    @Override
+    public int size() {
+        long size=tail.get()-head.get();
+        return (int) Math.max(0, Math.min(size, mask+1));
+    }
+
+    private boolean hasCapacity()
+    {
+        long position=tail.get();
+        return sequences.get((int)(position & mask))==position;
+    }
+
+    private void wakeUp(Set<Thread> waiters)
+    {
+        if(waiters.isEmpty())
+            return;
+        for(Thread thread:waiters)
+            LockSupport.unpark(thread);
+    }
+}
+
+// Log-linear histogram in the spirit of HdrHistogram: one bucket range per power of two, split into
+// SUB_BUCKETS linear sub-buckets, so any recorded value is reported within 1/SUB_BUCKETS of its true value.
+class LatencyHistogram{
+    private static final int SUB_BUCKET_BITS=3;
+    private static final int SUB_BUCKETS=1<<SUB_BUCKET_BITS;
+    private final AtomicLongArray counts=new AtomicLongArray((64-SUB_BUCKET_BITS+1)*SUB_BUCKETS);
+    private final LongAdder total=new LongAdder();
+    private final AtomicLong max=new AtomicLong();
+
+    void record(long value)
+    {
+        value=Math.max(0, value);
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        long currentMax=max.get();
+        while(value>currentMax && !max.compareAndSet(currentMax, value))
+            currentMax=max.get();
+    }
+
+    static int indexOf(long value)
+    {
+        if(value<SUB_BUCKETS)
+            return (int) value;
+        int magnitude=63-Long.numberOfLeadingZeros(value);
+        int subBucket=(int)(value>>>(magnitude-SUB_BUCKET_BITS)) & (SUB_BUCKETS-1);
+        return (magnitude-SUB_BUCKET_BITS+1)*SUB_BUCKETS+subBucket;
+    }
+
+    static long lowestValueAt(int index)
+    {
+        if(index<SUB_BUCKETS)
+            return index;
+        int magnitude=index/SUB_BUCKETS+SUB_BUCKET_BITS-1;
+        return ((long)(SUB_BUCKETS+index%SUB_BUCKETS))<<(magnitude-SUB_BUCKET_BITS);
+    }
+
+    long getCount()
+    {
+        return total.sum();
+    }
+
+    long getMax()
+    {
+        return max.get();
+    }
+
+    // Upper bound of the bucket holding the given percentile, capped at the recorded max.
+    long valueAtPercentile(double percentile)
+    {
+        long count=total.sum();
+        if(count==0)
+            return 0;
+        long target=Math.max(1, (long) Math.ceil(percentile/100.0*count));
+        long seen=0;
+        for(int i=0;i<counts.length();i++)
+        {
+            seen+=counts.get(i);
+            if(seen>=target)
+                return i+1<counts.length() ? Math.min(max.get(), lowestValueAt(i+1)-1) : max.get();
+        }
+        return max.get();
+    }
+
+    HistogramSnapshot snapshot()
+    {
+        return new HistogramSnapshot(getCount(), valueAtPercentile(50), valueAtPercentile(90),
+                valueAtPercentile(99), valueAtPercentile(99.9), getMax());
+    }
+}
+
+@Getter
+class HistogramSnapshot{
+    private final long count;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
+    private final long max;
+    HistogramSnapshot(long count, long p50, long p90, long p99, long p999, long max)
+    {
+        this.count=count;
+        this.p50=p50;
+        this.p90=p90;
+        this.p99=p99;
+        this.p999=p999;
+        this.max=max;
+    }
+
+    @Override
+    public String toString() {
+        return "count="+count+" p50="+p50+" p90="+p90+" p99="+p99+" p999="+p999+" max="+max;
+    }
+}
+
+@Getter
+class AsyncExecutorSnapshot{
+    private final long submitted;
+    private final long executed;
+    private final long dropped;
+    private final long failed;
+    private final long retried;
+    private final int queueDepth;
+    private final long activeWorkers;
+    private final HistogramSnapshot queueWaitNanos;
+    private final HistogramSnapshot executionNanos;
+    AsyncExecutorSnapshot(AsyncExecutorMetrics metrics)
+    {
+        this.submitted=metrics.getSubmitted();
+        this.executed=metrics.getExecuted();
+        this.dropped=metrics.getDropped();
+        this.failed=metrics.getFailed();
+        this.retried=metrics.getRetried();
+        this.queueDepth=metrics.getQueueDepth();
+        this.activeWorkers=metrics.getActiveWorkers();
+        this.queueWaitNanos=metrics.queueWait.snapshot();
+        this.executionNanos=metrics.execution.snapshot();
+    }
+
+    @Override
+    public String toString() {
+        return "submitted="+submitted+" executed="+executed+" dropped="+dropped+" failed="+failed+" retried="+retried
+                +" queueDepth="+queueDepth+" activeWorkers="+activeWorkers
+                +"\n  queueWaitNanos: "+queueWaitNanos+"\n  executionNanos: "+executionNanos;
+    }
+}
+
+class AsyncExecutorMetrics implements AsyncExecutorMXBean{
+    // Queue wait needs a timestamp carried with the task, so only one in QUEUE_WAIT_SAMPLE_RATE submits is wrapped for it.
+    static final int QUEUE_WAIT_SAMPLE_RATE=16;
+
+    final LongAdder submitted=new LongAdder();
+    final LongAdder executed=new LongAdder();
+    final LongAdder dropped=new LongAdder();
+    final LongAdder failed=new LongAdder();
+    final LongAdder retried=new LongAdder();
+    final LongAdder activeWorkers=new LongAdder();
+    final LatencyHistogram queueWait=new LatencyHistogram();
+    final LatencyHistogram execution=new LatencyHistogram();
+    private final TaskSink queue;
+    AsyncExecutorMetrics(TaskSink queue)
+    {
+        this.queue=queue;
+    }
+
+    @Override public long getSubmitted() {return submitted.sum();}
+    @Override public long getExecuted() {return executed.sum();}
+    @Override public long getDropped() {return dropped.sum();}
+    @Override public long getFailed() {return failed.sum();}
+    @Override public long getRetried() {return retried.sum();}
+    @Override public int getQueueDepth() {return queue.size();}
+    @Override public long getActiveWorkers() {return activeWorkers.sum();}
+    @Override public long getQueueWaitP50Micros() {return queueWait.valueAtPercentile(50)/1000;}
+    @Override public long getQueueWaitP99Micros() {return queueWait.valueAtPercentile(99)/1000;}
+    @Override public long getQueueWaitMaxMicros() {return queueWait.getMax()/1000;}
+    @Override public long getExecutionP50Micros() {return execution.valueAtPercentile(50)/1000;}
+    @Override public long getExecutionP99Micros() {return execution.valueAtPercentile(99)/1000;}
+    @Override public long getExecutionP999Micros() {return execution.valueAtPercentile(99.9)/1000;}
+    @Override public long getExecutionMaxMicros() {return execution.getMax()/1000;}
+}
+
+// A sampled submit, carrying the time it was handed to the queue.
+class QueueWaitSample implements AsyncTask{
+    final AsyncTask task;
+    final long submittedNanos=System.nanoTime();
+    QueueWaitSample(AsyncTask task)
+    {
+        this.task=task;
+    }
+
+    @Override
+    public void execute() throws Exception {
+        task.execute();
+    }
+
+    @Override
+    public boolean isCritical() {
+        return task.isCritical();
+    }
+}
+
+// Used by AsyncExecutor.withVirtualThreads instead of a queue: an accepted task starts on a virtual thread
+// straight away and holds one permit until it finishes, so size() is the number of tasks in flight.
+class VirtualThreadDispatcher implements TaskSink{
+    private final Semaphore permits;
+    private final int maxConcurrency;
+    private final ExecutorService threads;
+    private Consumer<AsyncTask> runner;
+
+    VirtualThreadDispatcher(int maxConcurrency, ExecutorService threads)
+    {
+        this.permits=new Semaphore(maxConcurrency);
+        this.maxConcurrency=maxConcurrency;
+        this.threads=threads;
+    }
+
+    void setRunner(Consumer<AsyncTask> runner)
+    {
+        this.runner=runner;
+    }
+
+    ExecutorService getThreads()
+    {
+        return threads;
+    }
+
+    @Override
+    public boolean offer(AsyncTask task) {
+        if(!permits.tryAcquire())
+            return false;
+        start(task);
+        return true;
+    }
+
+    @Override
+    public void put(AsyncTask task) throws InterruptedException {
+        permits.acquire();
+        start(task);
+    }
+
+    private void start(AsyncTask task)
+    {
+        try {
+            threads.execute(() -> {
+                try {
+                    runner.accept(task);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            permits.release();
+            throw exception;
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size()==0;
+    }
+
+    @Override
+    public int size() {
+        return maxConcurrency-permits.availablePermits();
+    }
+
+    @Override
+    public int capacity() {
+        return maxConcurrency;
+    }
 }
 
 @Getter
 @Setter
 class AsyncExecutor{
-    private final BlockingQueue<AsyncTask> queue;
+    // Null in virtual thread mode, where there are no workers to drain a queue.
+    private final TaskQueue queue;
+    private final TaskSink sink;
     private BackPressurePolicy backPressurePolicy;
     private RetryPolicy retryPolicy;
     private ExecutorService workers;
     private volatile boolean running=true;
+    private final List<Closeable> closeOnShutDown=new CopyOnWriteArrayList<>();
+    // Failed tasks wait here for their backoff instead of holding a worker.
+    private final ScheduledExecutorService retryScheduler;
+    private final AtomicInteger pendingRetries=new AtomicInteger();
+    private final AsyncExecutorMetrics metrics;
+    private AdaptiveBackPressure adaptiveBackPressure=AdaptiveBackPressure.DEFAULT;
+    // Null unless in batch mode.
+    private final BatchRunner batchRunner;
+    private final int maxBatchSize;
 
     public AsyncExecutor(int queueSize, int workerThread, BackPressurePolicy backPressurePolicy, RetryPolicy retryPolicy)
     {
+        this(new BlockingTaskQueue(queueSize), workerThread, backPressurePolicy, retryPolicy);
+    }
+
+    // Ring buffer mode: queueSize is rounded up to the next power of two.
+    public AsyncExecutor(int queueSize, int workerThread, BackPressurePolicy backPressurePolicy, RetryPolicy retryPolicy,
+                         WaitStrategy waitStrategy)
+    {
+        this(new RingBufferTaskQueue(queueSize, waitStrategy), workerThread, backPressurePolicy, retryPolicy);
+    }
+
+    private AsyncExecutor(TaskQueue queue, int workerThread, BackPressurePolicy backPressurePolicy, RetryPolicy retryPolicy)
+    {
+        this(queue, queue, Executors.newFixedThreadPool(workerThread), workerThread, null, 1, backPressurePolicy, retryPolicy);
+    }
+
+    // Batch mode: a worker drains up to maxBatchSize queued tasks and hands them to runner in one TaskBatch.
+    // executed, retried and failed then count batches rather than tasks.
+    public static AsyncExecutor withBatching(int queueSize, int workerThread, int maxBatchSize, BatchRunner runner,
+                                             BackPressurePolicy backPressurePolicy, RetryPolicy retryPolicy)
+    {
+        TaskQueue queue=new BlockingTaskQueue(queueSize);
+        return new AsyncExecutor(queue, queue, Executors.newFixedThreadPool(workerThread), workerThread, runner,
+                maxBatchSize, backPressurePolicy, retryPolicy);
+    }
+
+    // Virtual thread mode: no queue and no worker pool; every accepted task runs on its own virtual thread and
+    // BLOCK/DROP/FAIL apply once maxConcurrency tasks are in flight.
+    public static AsyncExecutor withVirtualThreads(int maxConcurrency, BackPressurePolicy backPressurePolicy, RetryPolicy retryPolicy)
+    {
+        VirtualThreadDispatcher dispatcher=new VirtualThreadDispatcher(maxConcurrency, Executors.newVirtualThreadPerTaskExecutor());
+        AsyncExecutor asyncExecutor=new AsyncExecutor(null, dispatcher, dispatcher.getThreads(), 0, null, 1,
+                backPressurePolicy, retryPolicy);
+        dispatcher.setRunner(asyncExecutor::runTask);
+        return asyncExecutor;
+    }
+
+    private AsyncExecutor(TaskQueue queue, TaskSink sink, ExecutorService workers, int workerThread,
+                          BatchRunner batchRunner, int maxBatchSize,
+                          BackPressurePolicy backPressurePolicy, RetryPolicy retryPolicy)
+    {
+        this.batchRunner=batchRunner;
+        this.maxBatchSize=maxBatchSize;
         this.backPressurePolicy=backPressurePolicy;
         this.retryPolicy=retryPolicy;
-        this.queue=new LinkedBlockingQueue<>(queueSize);
-        this.workers= Executors.newFixedThreadPool(workerThread);
+        this.queue=queue;
+        this.sink=sink;
+        this.metrics=new AsyncExecutorMetrics(sink);
+        this.retryScheduler=Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread=new Thread(runnable, "async-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workers=workers;
 
         for(int i=0;i<workerThread;i++)
             this.workers.submit(this::workerLoop);
@@ -89,79 +934,205 @@ class AsyncExecutor{
 
     public void workerLoop()
     {
-        while(running || !queue.isEmpty())
+        // pendingRetries is read before the queue: a retry is counted until it is back in the queue.
+        while(running || pendingRetries.get()>0 || !queue.isEmpty())
         {
             try{
-                AsyncTask task=queue.poll(200, TimeUnit.MILLISECONDS);
+                AsyncTask task=queue.take();
                 if(task == null) continue;
+                // A retried batch already holds its tasks.
+                if(batchRunner!=null && !(task instanceof RetryAttempt))
+                    task=drainBatch(task);
 
-                executeWithRetry(task);
+                runTask(task);
             } catch (InterruptedException ignored) {
 
             }
         }
     }
 
-    public void executeWithRetry(AsyncTask task)
+    void runTask(AsyncTask task)
     {
-        int attempt=0;
-        while(true)
+        executeWithRetry(unwrapSample(task));
+    }
+
+    private AsyncTask unwrapSample(AsyncTask task)
+    {
+        if(!(task instanceof QueueWaitSample))
+            return task;
+        QueueWaitSample sample=(QueueWaitSample) task;
+        metrics.queueWait.record(System.nanoTime()-sample.submittedNanos);
+        return sample.task;
+    }
+
+    // Retries drained along with new tasks run on their own, as they did the first time.
+    private AsyncTask drainBatch(AsyncTask first)
+    {
+        List<AsyncTask> tasks=new ArrayList<>(maxBatchSize);
+        tasks.add(unwrapSample(first));
+        List<AsyncTask> drained=new ArrayList<>(maxBatchSize-1);
+        queue.drainTo(drained, maxBatchSize-1);
+        for(AsyncTask task:drained)
         {
-            try{
-                task.execute();
+            if(task instanceof RetryAttempt)
+                executeWithRetry(task);
+            else
+                tasks.add(unwrapSample(task));
+        }
+        return new TaskBatch(tasks, batchRunner);
+    }
+
+    public void executeWithRetry(AsyncTask task)
+    {
+        metrics.activeWorkers.increment();
+        long start=System.nanoTime();
+        try{
+            task.execute();
+            metrics.executed.increment();
+        } catch (Exception e) {
+            System.out.println("Attempt Failed, Retrying");
+            RetryAttempt retry=task instanceof RetryAttempt ? (RetryAttempt) task : new RetryAttempt(task);
+            retry.attempt++;
+            if(retry.attempt>this.retryPolicy.getMaxRetries())
+            {
+                System.out.println("Maximum Retries happened");
+                metrics.failed.increment();
+                retryPolicy.getDeadLetterHandler().onExhausted(retry.task, e);
                 return;
-            } catch (Exception e) {
-                System.out.println("Attempt Failed, Retrying");
-                attempt++;
-                if(attempt>this.retryPolicy.getMaxRetries())
+            }
+            metrics.retried.increment();
+            pendingRetries.incrementAndGet();
+            scheduleRetry(retry, retryPolicy.delayForAttempt(retry.attempt));
+        } finally {
+            metrics.execution.record(System.nanoTime()-start);
+            metrics.activeWorkers.decrement();
+        }
+    }
+
+    // Never blocks the timer thread: if the queue is full the retry waits another round without using an attempt.
+    private void scheduleRetry(RetryAttempt retry, long delayMilliSeconds)
+    {
+        retryScheduler.schedule(() -> {
+            if(sink.offer(retry))
+                pendingRetries.decrementAndGet();
+            else
+                scheduleRetry(retry, retryPolicy.delayForAttempt(retry.attempt));
+        }, delayMilliSeconds, TimeUnit.MILLISECONDS);
+    }
+
+    // Returns false when the task was shed, or when BLOCK was interrupted before the task was queued.
+    public boolean submit(AsyncTask task)
+    {
+        metrics.submitted.increment();
+        if(ThreadLocalRandom.current().nextInt(AsyncExecutorMetrics.QUEUE_WAIT_SAMPLE_RATE)==0)
+            task=new QueueWaitSample(task);
+        switch (backPressurePolicy)
+        {
+            case BLOCK:
+                try {
+                    this.sink.put(task);
+                    return true;
+                } catch (InterruptedException ignored) {
+                    return false;
+                }
+            case DROP:
+                if(sink.offer(task))
+                    return true;
+                metrics.dropped.increment();
+                System.out.println("Request is dropped");
+                return false;
+            case FAIL:
+                if(sink.offer(task))
+                    return true;
+                metrics.dropped.increment();
+                throw new IllegalStateException("Queue Size exceeds");
+            case ADAPTIVE:
+                if(task.isCritical())
                 {
-                    System.out.println("Maximum Retries happened");
-                    return;
+                    try {
+                        this.sink.put(task);
+                        return true;
+                    } catch (InterruptedException ignored) {
+                        return false;
+                    }
                 }
-                try{
-                    Thread.sleep(retryPolicy.getDelayMilliSeconds());
-                } catch (InterruptedException ignored) {
+                // Shed silently: printing per dropped task would slow producers exactly when the sink is saturated.
+                if(adaptiveBackPressure.admitsNonCritical(sink.size(), sink.capacity()) && sink.offer(task))
+                    return true;
+                metrics.dropped.increment();
+                return false;
+            default:
+                throw new IllegalStateException("Unknown back pressure policy "+backPressurePolicy);
+        }
+    }
 
-                }
-            }
+    public AsyncExecutorSnapshot snapshot()
+    {
+        return new AsyncExecutorSnapshot(metrics);
+    }
+
+    public void registerMBean(String name)
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("LowLevelDesign:type=AsyncExecutor,name="+name));
+        } catch (JMException exception) {
+            throw new IllegalStateException("Could not register AsyncExecutor MBean "+name, exception);
         }
     }
 
-    public void submit(AsyncTask task)
+    // Waits until no retry is pending and nothing is queued or, in virtual thread mode, in flight.
+    // A task a worker is still running may yet schedule a retry; the worker loop keeps going until it is drained.
+    private void awaitIdle(long timeoutNanos) throws InterruptedException
     {
-        switch (backPressurePolicy)
+        long deadline=System.nanoTime()+timeoutNanos;
+        while(pendingRetries.get()>0 || !sink.isEmpty())
         {
-            case BLOCK:
-                try {
-                    this.queue.put(task);
-                } catch (InterruptedException ignored) {}
-                break;
-            case DROP:
-                if(!queue.offer(task))
-                    System.out.println("Request is dropped");
-                break;
-            case FAIL:
-                if(!queue.offer(task))
-                    throw new IllegalStateException("Queue Size exceeds");
-                break;
+            if(System.nanoTime()>deadline)
+                return;
+            Thread.sleep(10);
         }
     }
 
+    // Closed once the workers have drained the queue, so buffered sinks see every submitted task.
+    public void closeOnShutDown(Closeable closeable)
+    {
+        closeOnShutDown.add(closeable);
+    }
+
     public void shutDown()
     {
         running=false;
-        workers.shutdown();
+        try {
+            awaitIdle(TimeUnit.SECONDS.toNanos(30));
+            if(queue!=null)
+                queue.close();
+            workers.shutdown();
+            workers.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        retryScheduler.shutdown();
+        for(Closeable closeable:closeOnShutDown)
+        {
+            try {
+                closeable.close();
+            } catch (IOException exception) {
+                exception.printStackTrace();
+            }
+        }
     }
 }
 class LogTask implements AsyncTask{
 
-    LogMessage logMessage;
+    final LogMessage logMessage=new LogMessage();
     Appender appender;
+    BlockingQueue<LogTask> pool;
     volatile static int i=0;
-    LogTask(Appender appender, LogMessage logMessage)
+    LogTask(Appender appender, BlockingQueue<LogTask> pool)
     {
         this.appender=appender;
-        this.logMessage=logMessage;
+        this.pool=pool;
     }
     @Override
     public void execute() throws InterruptedException {
@@ -169,25 +1140,113 @@ class LogTask implements AsyncTask{
         if(i>2) {
             System.out.println("Starting Appender required");
             appender.append(logMessage);
+            pool.offer(this);
         }else throw new InterruptedException();
     }
+
+    @Override
+    public boolean isCritical() {
+        return isCritical(logMessage);
+    }
+
+    static boolean isCritical(LogMessage logMessage)
+    {
+        return logMessage.logLevel.ordinal()>=LogLevel.ERROR.ordinal();
+    }
 }
 class AsyncAppender implements Appender{
 
+    private static final int POOL_SIZE=1024;
     Appender appender;
     AsyncExecutor asyncExecutor;
+    // Recycled tasks; the caller's LogMessage is copied into one since the caller reuses it after append returns.
+    final BlockingQueue<LogTask> pool=new ArrayBlockingQueue<>(POOL_SIZE);
     AsyncAppender(Appender appender, AsyncExecutor asyncExecutor)
     {
         this.asyncExecutor=asyncExecutor;
         this.appender=appender;
+        if(appender instanceof Closeable)
+            asyncExecutor.closeOnShutDown((Closeable) appender);
     }
     @Override
     public void append(LogMessage logMessage) {
         System.out.println("Calling Async Appender");
-        asyncExecutor.submit(new LogTask(appender,logMessage));
+        LogTask task=pool.poll();
+        if(task==null)
+            task=new LogTask(appender,pool);
+        task.logMessage.copyFrom(logMessage);
+        asyncExecutor.submit(task);
         //asyncExecutor.submit(()->appender.append(logMessage));
     }
 }
+// Queues copies of the records on a batch mode AsyncExecutor, whose workers drain up to maxBatchSize of them per
+// appendBatch call; back pressure, retries, metrics and dead letters are the executor's.
+class BatchingAsyncAppender implements Appender, Closeable{
+
+    private final Appender appender;
+    final AsyncExecutor asyncExecutor;
+    // Recycled record copies, so steady-state appends do not allocate. A batch that ends up with the dead-letter
+    // handler keeps its copies.
+    private final BlockingQueue<BatchedLogMessage> free;
+
+    BatchingAsyncAppender(Appender appender, int queueSize, int maxBatchSize, int workerThread,
+                          BackPressurePolicy backPressurePolicy, RetryPolicy retryPolicy)
+    {
+        this.appender=appender;
+        this.free=new ArrayBlockingQueue<>(queueSize+maxBatchSize*workerThread);
+        this.asyncExecutor=AsyncExecutor.withBatching(queueSize, workerThread, maxBatchSize, this::appendDrained,
+                backPressurePolicy, retryPolicy);
+        if(appender instanceof Closeable)
+            asyncExecutor.closeOnShutDown((Closeable) appender);
+    }
+
+    @Override
+    public void append(LogMessage logMessage) {
+        if(!asyncExecutor.isRunning())
+            throw new IllegalStateException("Appender is closed");
+        BatchedLogMessage task=free.poll();
+        if(task==null)
+            task=new BatchedLogMessage();
+        task.logMessage.copyFrom(logMessage);
+        boolean accepted=false;
+        try {
+            accepted=asyncExecutor.submit(task);
+        } finally {
+            if(!accepted)
+                free.offer(task);
+        }
+    }
+
+    private void appendDrained(List<AsyncTask> tasks)
+    {
+        List<LogMessage> batch=new ArrayList<>(tasks.size());
+        for(AsyncTask task:tasks)
+            batch.add(((BatchedLogMessage) task).logMessage);
+        appender.appendBatch(batch);
+        for(AsyncTask task:tasks)
+            free.offer((BatchedLogMessage) task);
+    }
+
+    @Override
+    public void close() throws IOException {
+        asyncExecutor.shutDown();
+    }
+
+    // Only ever run as part of a TaskBatch.
+    static class BatchedLogMessage implements AsyncTask{
+        final LogMessage logMessage=new LogMessage();
+
+        @Override
+        public void execute() {
+            throw new IllegalStateException("Batched log messages are appended by their batch");
+        }
+
+        @Override
+        public boolean isCritical() {
+            return LogTask.isCritical(logMessage);
+        }
+    }
+}
 class ConsoleAppender implements Appender{
 
     LogFormatter logFormatter;
@@ -200,6 +1259,17 @@ class ConsoleAppender implements Appender{
     public void append(LogMessage logMessage) {
         System.out.println(logFormatter.format(logMessage));
     }
+
+    @Override
+    public void appendBatch(List<LogMessage> logMessages) {
+        StringBuilder out=new StringBuilder(logMessages.size()*64);
+        for(LogMessage logMessage:logMessages)
+        {
+            logFormatter.formatTo(logMessage, out);
+            out.append(System.lineSeparator());
+        }
+        System.out.print(out);
+    }
 }
 class FileAppender implements Appender{
 
@@ -214,10 +1284,18 @@ class FileAppender implements Appender{
 
     @Override
     public void append(LogMessage logMessage) {
+        appendBatch(Collections.singletonList(logMessage));
+    }
+
+    @Override
+    public void appendBatch(List<LogMessage> logMessages) {
         try(FileWriter fw = new FileWriter(filePath, true);
             BufferedWriter bw = new BufferedWriter(fw)){
-            bw.write(logFormatter.format(logMessage));
-            bw.newLine();
+            for(LogMessage logMessage:logMessages)
+            {
+                bw.write(logFormatter.format(logMessage));
+                bw.newLine();
+            }
             System.out.println("Appending to file "+ LocalDateTime.now());
             Thread.sleep(5000);
         }
@@ -229,10 +1307,526 @@ class FileAppender implements Appender{
         }
     }
 }
+// Encodes straight into a ByteBuffer, avoiding the CharBuffer a CharsetEncoder would need.
+final class Utf8{
+    private Utf8(){}
+
+    static int encodedLength(CharSequence chars)
+    {
+        int length=chars.length();
+        int bytes=0;
+        for(int i=0;i<length;i++)
+        {
+            char c=chars.charAt(i);
+            if(c<0x80)
+                bytes++;
+            else if(c<0x800)
+                bytes+=2;
+            else if(Character.isHighSurrogate(c) && i+1<length && Character.isLowSurrogate(chars.charAt(i+1)))
+            {
+                bytes+=4;
+                i++;
+            }
+            else if(Character.isSurrogate(c))
+                bytes++;
+            else
+                bytes+=3;
+        }
+        return bytes;
+    }
+
+    // The buffer must have encodedLength(chars) bytes remaining; unpaired surrogates become '?'.
+    static void encode(CharSequence chars, ByteBuffer buffer)
+    {
+        int length=chars.length();
+        for(int i=0;i<length;i++)
+        {
+            char c=chars.charAt(i);
+            if(c<0x80)
+                buffer.put((byte)c);
+            else if(c<0x800)
+                buffer.put((byte)(0xC0|c>>6)).put((byte)(0x80|c&0x3F));
+            else if(Character.isHighSurrogate(c) && i+1<length && Character.isLowSurrogate(chars.charAt(i+1)))
+            {
+                int codePoint=Character.toCodePoint(c, chars.charAt(++i));
+                buffer.put((byte)(0xF0|codePoint>>18)).put((byte)(0x80|codePoint>>12&0x3F))
+                        .put((byte)(0x80|codePoint>>6&0x3F)).put((byte)(0x80|codePoint&0x3F));
+            }
+            else if(Character.isSurrogate(c))
+                buffer.put((byte)'?');
+            else
+                buffer.put((byte)(0xE0|c>>12)).put((byte)(0x80|c>>6&0x3F)).put((byte)(0x80|c&0x3F));
+        }
+    }
+}
+
+enum FsyncPolicy{
+    NEVER,
+    PER_BATCH,
+    INTERVAL
+}
+
+// Turns records into bytes for a file appender. Stateful, so every appender needs its own instance.
+interface RecordEncoder{
+    // Written once each time a file is opened.
+    default void writeHeader(ByteBuffer buffer)
+    {
+    }
+
+    // Returns the encoded size of the record; the next encode call writes exactly that many bytes.
+    int prepare(LogMessage logMessage);
+
+    void encode(ByteBuffer buffer);
+}
+
+class TextRecordEncoder implements RecordEncoder{
+    private final LogFormatter logFormatter;
+    private final StringBuilder line=new StringBuilder(256);
+    TextRecordEncoder(LogFormatter logFormatter)
+    {
+        this.logFormatter=logFormatter;
+    }
+
+    @Override
+    public int prepare(LogMessage logMessage) {
+        line.setLength(0);
+        logFormatter.formatTo(logMessage, line);
+        line.append('\n');
+        return Utf8.encodedLength(line);
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
+        Utf8.encode(line, buffer);
+    }
+}
+
+// Compact binary layout; integers are big-endian, lengths and ids unsigned varints:
+//   header:   MAGIC(int) VERSION(byte)                  at every open; starts a fresh template dictionary
+//   template: TEMPLATE(byte) id text                     the first time a template is seen after a header
+//   event:    EVENT(byte) epochMillis(long) level(byte) templateId argCount args...
+//   inline:   INLINE_EVENT(byte) epochMillis(long) level(byte) text argCount args...
+//   text/arg: length UTF-8 bytes
+// The dictionary holds at most MAX_TEMPLATES entries per file; once full, unseen templates are written inline,
+// so messages built by concatenation cannot grow it without bound.
+// BinaryLogDecoder turns a file back into SimpleFormatter text.
+class BinaryRecordEncoder implements RecordEncoder{
+    static final int MAGIC=0x4C4C4442;
+    static final byte VERSION=1;
+    static final byte TEMPLATE=1;
+    static final byte EVENT=2;
+    static final byte INLINE_EVENT=3;
+    static final int MAX_TEMPLATES=4096;
+
+    private final Map<String, Integer> templateIds=new HashMap<>();
+    private LogMessage logMessage;
+    private String template;
+    private int templateId;
+    private boolean newTemplate;
+    private boolean inline;
+    private CharSequence[] argText=new CharSequence[2];
+
+    @Override
+    public void writeHeader(ByteBuffer buffer) {
+        templateIds.clear();
+        buffer.putInt(MAGIC).put(VERSION);
+    }
+
+    @Override
+    public int prepare(LogMessage logMessage) {
+        this.logMessage=logMessage;
+        this.template=logMessage.msg==null ? "null" : logMessage.msg;
+        Integer id=templateIds.get(template);
+        inline=id==null && templateIds.size()>=MAX_TEMPLATES;
+        newTemplate=id==null && !inline;
+        templateId=id!=null ? id : templateIds.size();
+        int size=0;
+        if(newTemplate)
+            size+=1+varIntSize(templateId)+textSize(template);
+        int argCount=Math.min(logMessage.argCount, 255);
+        if(argCount>argText.length)
+            argText=new CharSequence[argCount];
+        size+=1+8+1+(inline ? textSize(template) : varIntSize(templateId))+1;
+        for(int i=0;i<argCount;i++)
+        {
+            Object arg=logMessage.args[i];
+            argText[i]=arg instanceof CharSequence ? (CharSequence) arg : String.valueOf(arg);
+            size+=textSize(argText[i]);
+        }
+        return size;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
+        if(newTemplate)
+        {
+            templateIds.put(template, templateId);
+            buffer.put(TEMPLATE);
+            putVarInt(buffer, templateId);
+            putText(buffer, template);
+        }
+        int argCount=Math.min(logMessage.argCount, 255);
+        buffer.put(inline ? INLINE_EVENT : EVENT).putLong(logMessage.epochMillis).put((byte) logMessage.logLevel.ordinal());
+        if(inline)
+            putText(buffer, template);
+        else
+            putVarInt(buffer, templateId);
+        buffer.put((byte) argCount);
+        for(int i=0;i<argCount;i++)
+        {
+            putText(buffer, argText[i]);
+            argText[i]=null;
+        }
+        logMessage=null;
+    }
+
+    private static int textSize(CharSequence text)
+    {
+        int length=Utf8.encodedLength(text);
+        return varIntSize(length)+length;
+    }
+
+    private static void putText(ByteBuffer buffer, CharSequence text)
+    {
+        putVarInt(buffer, Utf8.encodedLength(text));
+        Utf8.encode(text, buffer);
+    }
+
+    static int varIntSize(int value)
+    {
+        int size=1;
+        while((value>>>=7)!=0)
+            size++;
+        return size;
+    }
+
+    static void putVarInt(ByteBuffer buffer, int value)
+    {
+        while((value & ~0x7F)!=0)
+        {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value>>>=7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int getVarInt(ByteBuffer buffer)
+    {
+        int value=0;
+        for(int shift=0;;shift+=7)
+        {
+            byte b=buffer.get();
+            value|=(b & 0x7F)<<shift;
+            if(b>=0)
+                return value;
+        }
+    }
+}
+
+// Keeps one channel open and group commits records: the buffer is written when it fills up
+// or when the flush interval elapses, whichever comes first.
+class GroupCommitFileAppender implements Appender, Closeable{
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final RecordEncoder recordEncoder;
+    private final FsyncPolicy fsyncPolicy;
+    private final ScheduledExecutorService flusher;
+    private boolean unsynced;
+    private boolean closed;
+
+    GroupCommitFileAppender(String filePath, LogFormatter logFormatter, int batchSizeBytes,
+                            long flushIntervalMs, FsyncPolicy fsyncPolicy)
+    {
+        this(filePath, new TextRecordEncoder(logFormatter), batchSizeBytes, flushIntervalMs, fsyncPolicy);
+    }
+
+    GroupCommitFileAppender(String filePath, RecordEncoder recordEncoder, int batchSizeBytes,
+                            long flushIntervalMs, FsyncPolicy fsyncPolicy)
+    {
+        this.recordEncoder=recordEncoder;
+        this.fsyncPolicy=fsyncPolicy;
+        this.buffer=ByteBuffer.allocateDirect(batchSizeBytes);
+        recordEncoder.writeHeader(buffer);
+        try {
+            this.channel=FileChannel.open(Paths.get(filePath), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        this.flusher=Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread=new Thread(runnable, "log-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleAtFixedRate(this::flushOnTimer, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void append(LogMessage logMessage) {
+        if(closed)
+            throw new IllegalStateException("Appender is closed");
+        try {
+            write(logMessage);
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    @Override
+    public synchronized void appendBatch(List<LogMessage> logMessages) {
+        if(closed)
+            throw new IllegalStateException("Appender is closed");
+        try {
+            for(int i=0;i<logMessages.size();i++)
+                write(logMessages.get(i));
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    private void write(LogMessage logMessage) throws IOException {
+        int length=recordEncoder.prepare(logMessage);
+        if(length>buffer.remaining())
+            writeBuffer();
+        if(length<=buffer.remaining())
+        {
+            recordEncoder.encode(buffer);
+            return;
+        }
+        ByteBuffer oversized=ByteBuffer.allocate(length);
+        recordEncoder.encode(oversized);
+        oversized.flip();
+        while(oversized.hasRemaining())
+            channel.write(oversized);
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+        if(fsyncPolicy==FsyncPolicy.PER_BATCH)
+            channel.force(false);
+        else
+            unsynced=true;
+    }
+
+    private synchronized void flushOnTimer()
+    {
+        if(closed)
+            return;
+        try {
+            if(buffer.position()>0)
+                writeBuffer();
+            if(fsyncPolicy==FsyncPolicy.INTERVAL && unsynced)
+            {
+                channel.force(false);
+                unsynced=false;
+            }
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(closed)
+            return;
+        closed=true;
+        flusher.shutdown();
+        if(buffer.position()>0)
+            writeBuffer();
+        if(fsyncPolicy!=FsyncPolicy.NEVER)
+            channel.force(false);
+        channel.close();
+    }
+}
+// Writes into a memory-mapped segment and rolls to a new one when it is full or rollIntervalMs has passed.
+// Closed segments are gzipped on a background thread and only the newest maxSegments archives are kept.
+// Segments are numbered by a sequence that continues across restarts, so a name is never reused.
+// If a roll fails the appender closes itself rather than write into a segment that is no longer mapped.
+class RollingMappedFileAppender implements Appender, Closeable{
+
+    private final Path directory;
+    private final String baseName;
+    private final int segmentSize;
+    private final long rollIntervalMs;
+    private final int maxSegments;
+    private final LogFormatter logFormatter;
+    private final StringBuilder line=new StringBuilder(256);
+    private final ExecutorService compressor;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private Path segmentPath;
+    private long segmentStartMillis;
+    private long nextSequence;
+    private boolean closed;
+
+    RollingMappedFileAppender(String directory, String baseName, int segmentSize, long rollIntervalMs,
+                              int maxSegments, LogFormatter logFormatter)
+    {
+        this.directory=Paths.get(directory);
+        this.baseName=baseName;
+        this.segmentSize=segmentSize;
+        this.rollIntervalMs=rollIntervalMs;
+        this.maxSegments=maxSegments;
+        this.logFormatter=logFormatter;
+        this.compressor=Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread=new Thread(runnable, "log-compressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Files.createDirectories(this.directory);
+            // Segments left behind by a previous run that did not close cleanly.
+            for(Path leftover:listSegments(".log"))
+                compressor.submit(() -> compress(leftover));
+            for(Path existing:listSegments(".log.gz"))
+                nextSequence=Math.max(nextSequence, sequenceOf(existing)+1);
+            for(Path existing:listSegments(".log"))
+                nextSequence=Math.max(nextSequence, sequenceOf(existing)+1);
+            openSegment(System.currentTimeMillis(), segmentSize);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    @Override
+    public synchronized void append(LogMessage logMessage) {
+        if(closed)
+            throw new IllegalStateException("Appender is closed");
+        try {
+            write(logMessage);
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    @Override
+    public synchronized void appendBatch(List<LogMessage> logMessages) {
+        if(closed)
+            throw new IllegalStateException("Appender is closed");
+        try {
+            for(int i=0;i<logMessages.size();i++)
+                write(logMessages.get(i));
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    private void write(LogMessage logMessage) throws IOException {
+        line.setLength(0);
+        logFormatter.formatTo(logMessage, line);
+        line.append('\n');
+        int length=Utf8.encodedLength(line);
+        if(length>segment.remaining() || logMessage.epochMillis-segmentStartMillis>=rollIntervalMs)
+            roll(logMessage.epochMillis, Math.max(segmentSize, length));
+        Utf8.encode(line, segment);
+    }
+
+    private void roll(long nowMillis, int size) throws IOException {
+        try {
+            Path closedSegment=closeSegment();
+            compressor.submit(() -> compress(closedSegment));
+            openSegment(nowMillis, size);
+        } catch (IOException | RuntimeException exception) {
+            closed=true;
+            compressor.shutdown();
+            throw exception;
+        }
+    }
+
+    private void openSegment(long nowMillis, int size) throws IOException {
+        segmentPath=directory.resolve(String.format("%s-%012d.log", baseName, nextSequence++));
+        channel=FileChannel.open(segmentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment=channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        segmentStartMillis=nowMillis;
+    }
+
+    // Trims the preallocated tail so the file holds only what was written.
+    private Path closeSegment() throws IOException {
+        segment.force();
+        channel.truncate(segment.position());
+        channel.close();
+        return segmentPath;
+    }
+
+    private void compress(Path source)
+    {
+        Path target=source.resolveSibling(source.getFileName()+".gz");
+        try(OutputStream out=new GZIPOutputStream(Files.newOutputStream(target))) {
+            Files.copy(source, out);
+        } catch (IOException exception) {
+            exception.printStackTrace();
+            return;
+        }
+        try {
+            Files.delete(source);
+            List<Path> archives=listSegments(".log.gz");
+            for(int i=0;i<archives.size()-maxSegments;i++)
+                Files.deleteIfExists(archives.get(i));
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    private long sequenceOf(Path segment)
+    {
+        String name=segment.getFileName().toString();
+        String digits=name.substring(baseName.length()+1, name.indexOf('.', baseName.length()+1));
+        try {
+            return Long.parseLong(digits);
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
+    }
+
+    // Oldest first: segment names embed the zero-padded sequence number.
+    private List<Path> listSegments(String suffix) throws IOException {
+        try(Stream<Path> files=Files.list(directory)) {
+            return files.filter(path -> {
+                        String name=path.getFileName().toString();
+                        return name.startsWith(baseName+"-") && name.endsWith(suffix);
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if(closed)
+                return;
+            closed=true;
+            Path lastSegment=closeSegment();
+            compressor.submit(() -> compress(lastSegment));
+        }
+        compressor.shutdown();
+        try {
+            compressor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
 class Logger {
 
     private Logger(){};
-    List<Appender> appenders=new ArrayList<>();
+    private static final class AppenderRef{
+        final Appender appender;
+        final LogLevel threshold;
+        AppenderRef(Appender appender, LogLevel threshold)
+        {
+            this.appender=appender;
+            this.threshold=threshold;
+        }
+    }
+    private volatile AppenderRef[] appenders=new AppenderRef[0];
+    private LogLevel level=LogLevel.DEBUG;
+    // max(logger level, lowest appender threshold); a disabled call reads only this field.
+    private volatile LogLevel effectiveLevel=LogLevel.FATAL;
     private static final class LoggerHolder {
         static final Logger logger = new Logger();
     }
@@ -241,15 +1835,122 @@ class Logger {
     {
         return LoggerHolder.logger;
     }
+    private final ThreadLocal<LogMessage> threadMessage=ThreadLocal.withInitial(LogMessage::new);
+
+    synchronized void setLevel(LogLevel level)
+    {
+        this.level=level;
+        updateEffectiveLevel();
+    }
+
+    void addAppender(Appender appender)
+    {
+        addAppender(appender, LogLevel.DEBUG);
+    }
+
+    synchronized void addAppender(Appender appender, LogLevel threshold)
+    {
+        AppenderRef[] updated=Arrays.copyOf(appenders, appenders.length+1);
+        updated[appenders.length]=new AppenderRef(appender, threshold);
+        appenders=updated;
+        updateEffectiveLevel();
+    }
+
+    synchronized void removeAppender(Appender appender)
+    {
+        appenders=Arrays.stream(appenders).filter(ref -> ref.appender!=appender).toArray(AppenderRef[]::new);
+        updateEffectiveLevel();
+    }
+
+    private void updateEffectiveLevel()
+    {
+        LogLevel lowest=LogLevel.FATAL;
+        for(AppenderRef ref:appenders)
+            if(ref.threshold.ordinal()<lowest.ordinal())
+                lowest=ref.threshold;
+        effectiveLevel=lowest.ordinal()>level.ordinal() ? lowest : level;
+    }
+
+    boolean isEnabled(LogLevel logLevel)
+    {
+        LogLevel threshold=effectiveLevel;
+        return threshold.shouldLog(threshold, logLevel);
+    }
+
     void log(LogLevel logLevel, String msg)
     {
-        LogMessage logMessage=new LogMessage(msg, logLevel);
-        appenders.forEach(appender -> appender.append(logMessage));
+        if(!isEnabled(logLevel))
+            return;
+        dispatch(message(logLevel, msg));
+    }
+
+    void log(LogLevel logLevel, Supplier<String> msgSupplier)
+    {
+        if(!isEnabled(logLevel))
+            return;
+        dispatch(message(logLevel, msgSupplier.get()));
+    }
+
+    void log(LogLevel logLevel, String pattern, Object arg)
+    {
+        if(!isEnabled(logLevel))
+            return;
+        LogMessage logMessage=message(logLevel, pattern);
+        logMessage.setArgs(arg);
+        dispatch(logMessage);
+    }
+
+    void log(LogLevel logLevel, String pattern, Object arg1, Object arg2)
+    {
+        if(!isEnabled(logLevel))
+            return;
+        LogMessage logMessage=message(logLevel, pattern);
+        logMessage.setArgs(arg1, arg2);
+        dispatch(logMessage);
+    }
+
+    void log(LogLevel logLevel, String pattern, Object... args)
+    {
+        if(!isEnabled(logLevel))
+            return;
+        LogMessage logMessage=message(logLevel, pattern);
+        logMessage.setArgs(args);
+        dispatch(logMessage);
+    }
+
+    private LogMessage message(LogLevel logLevel, String msg)
+    {
+        LogMessage logMessage=threadMessage.get();
+        logMessage.set(msg, logLevel, System.currentTimeMillis());
+        return logMessage;
+    }
+
+    private void dispatch(LogMessage logMessage)
+    {
+        for(AppenderRef ref:appenders)
+            if(ref.threshold.shouldLog(ref.threshold, logMessage.logLevel))
+                ref.appender.append(logMessage);
     }
 
     void info(String msg) {log(LogLevel.INFO,msg);}
     void debug(String msg) {log(LogLevel.DEBUG,msg);}
     void error(String msg) {log(LogLevel.ERROR,msg);}
+
+    void info(Supplier<String> msg) {log(LogLevel.INFO,msg);}
+    void debug(Supplier<String> msg) {log(LogLevel.DEBUG,msg);}
+    void error(Supplier<String> msg) {log(LogLevel.ERROR,msg);}
+
+    void info(String pattern, Object arg) {log(LogLevel.INFO,pattern,arg);}
+    void debug(String pattern, Object arg) {log(LogLevel.DEBUG,pattern,arg);}
+    void error(String pattern, Object arg) {log(LogLevel.ERROR,pattern,arg);}
+
+    void info(String pattern, Object arg1, Object arg2) {log(LogLevel.INFO,pattern,arg1,arg2);}
+    void debug(String pattern, Object arg1, Object arg2) {log(LogLevel.DEBUG,pattern,arg1,arg2);}
+    void error(String pattern, Object arg1, Object arg2) {log(LogLevel.ERROR,pattern,arg1,arg2);}
+
+    void info(String pattern, Object... args) {log(LogLevel.INFO,pattern,args);}
+    void debug(String pattern, Object... args) {log(LogLevel.DEBUG,pattern,args);}
+    void error(String pattern, Object... args) {log(LogLevel.ERROR,pattern,args);}
 }
 public class LoggerSystem {
     public static void main(String[] args){
@@ -260,8 +1961,8 @@ public class LoggerSystem {
 
 
 
-        logger.appenders.add(new AsyncAppender(new ConsoleAppender(new SimpleFormatter()), asyncExecutor));
-        logger.appenders.add(new AsyncAppender(new FileAppender("system.log",new SimpleFormatter()), asyncExecutor));
+        logger.addAppender(new AsyncAppender(new ConsoleAppender(new SimpleFormatter()), asyncExecutor));
+        logger.addAppender(new AsyncAppender(new FileAppender("system.log",new SimpleFormatter()), asyncExecutor), LogLevel.INFO);
 
         logger.info("Info message");
 //        logger.debug("Debug Message");
@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Load generator for MessageQueueService. Each scenario runs N producers and M consumers for a fixed time; consumers
+// skip the ack for a configurable share of messages, which drives visibility-timeout redelivery and the DLQ.
+// Reports acked messages/sec, enqueue-to-ack latency and how long expiry requeues hold a partition lock, and writes
+// every result to a JSON file so runs can be compared.
+// Usage: java MessageQueueBenchmark [durationMillis] [output.json]
+public class MessageQueueBenchmark {
+
+    static final int[] PRODUCERS={1, 4};
+    static final int[] CONSUMERS={1, 4};
+    static final int[] PARTITIONS={1, 4};
+    static final int[] BATCH_SIZES={1, 32};
+    static final double[] ACK_FAILURE_RATES={0, 0.05};
+    static final int MAX_RETRIES=3;
+    static final long VISIBILITY_TIMEOUT_MS=50;
+    // Producers pause while this many messages are unacked, so a fast producer measures the queue, not the heap.
+    static final long MAX_BACKLOG=2_000;
+
+    static final PrintStream report=System.out;
+
+    static class Scenario{
+        final int producers;
+        final int consumers;
+        final int partitions;
+        final int batchSize;
+        final double ackFailureRate;
+        Scenario(int producers, int consumers, int partitions, int batchSize, double ackFailureRate)
+        {
+            this.producers=producers;
+            this.consumers=consumers;
+            this.partitions=partitions;
+            this.batchSize=batchSize;
+            this.ackFailureRate=ackFailureRate;
+        }
+    }
+
+    static class Result{
+        final Scenario scenario;
+        final long produced;
+        final long acked;
+        final long elapsedNanos;
+        final long deadLettered;
+        final NanosHistogram latency;
+        final NanosHistogram requeueLockHold;
+        Result(Scenario scenario, long produced, long acked, long elapsedNanos, long deadLettered,
+               NanosHistogram latency, NanosHistogram requeueLockHold)
+        {
+            this.scenario=scenario;
+            this.produced=produced;
+            this.acked=acked;
+            this.elapsedNanos=elapsedNanos;
+            this.deadLettered=deadLettered;
+            this.latency=latency;
+            this.requeueLockHold=requeueLockHold;
+        }
+
+        double messagesPerSecond()
+        {
+            return acked*1e9/elapsedNanos;
+        }
+    }
+
+    // The payload carries the enqueue time, so latency covers redeliveries up to the ack that finally succeeds.
+    static Result run(Scenario scenario, long durationMillis) throws InterruptedException {
+        MessageQueueService service=new MessageQueueService(scenario.partitions, MAX_RETRIES, VISIBILITY_TIMEOUT_MS);
+        LongAdder produced=new LongAdder();
+        LongAdder acked=new LongAdder();
+        AtomicLong nextId=new AtomicLong();
+        NanosHistogram latency=new NanosHistogram();
+        CountDownLatch start=new CountDownLatch(1);
+        long[] deadline=new long[1];
+        List<Thread> threads=new ArrayList<>();
+        for(int p=0;p<scenario.producers;p++)
+        {
+            threads.add(new Thread(() -> {
+                await(start);
+                while(System.nanoTime()<deadline[0])
+                {
+                    if(produced.sum()-acked.sum()>MAX_BACKLOG)
+                    {
+                        LockSupport.parkNanos(50_000);
+                        continue;
+                    }
+                    service.addMessage(new Msg(Long.toString(nextId.getAndIncrement()), Long.toString(System.nanoTime())));
+                    produced.increment();
+                }
+            }));
+        }
+        for(int c=0;c<scenario.consumers;c++)
+        {
+            threads.add(new Thread(() -> {
+                await(start);
+                ThreadLocalRandom random=ThreadLocalRandom.current();
+                List<String> receiptHandles=new ArrayList<>(scenario.batchSize);
+                Map<String, Long> enqueuedAt=new HashMap<>();
+                try {
+                    while(System.nanoTime()<deadline[0])
+                    {
+                        List<Msg> batch=service.poll(scenario.batchSize, Duration.ofMillis(10));
+                        receiptHandles.clear();
+                        enqueuedAt.clear();
+                        for(Msg message:batch)
+                        {
+                            if(random.nextDouble()<scenario.ackFailureRate)
+                                continue;
+                            receiptHandles.add(message.getReceiptHandle());
+                            enqueuedAt.put(message.getMsgId(), Long.parseLong(message.getPayload()));
+                        }
+                        if(receiptHandles.isEmpty())
+                            continue;
+                        // Stale receipts (the message timed out and was redelivered meanwhile) are not acked and
+                        // not measured; the redelivery that is acked records the message's latency.
+                        List<String> ackedIds=service.messageQueue.ackBatch(receiptHandles);
+                        long now=System.nanoTime();
+                        for(String msgId:ackedIds)
+                            latency.record(now-enqueuedAt.get(msgId));
+                        acked.add(ackedIds.size());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for(Thread thread:threads)
+            thread.start();
+        long begin=System.nanoTime();
+        deadline[0]=begin+durationMillis*1_000_000;
+        start.countDown();
+        for(Thread thread:threads)
+            thread.join();
+        long elapsed=System.nanoTime()-begin;
+        Result result=new Result(scenario, produced.sum(), acked.sum(), elapsed, service.getDeadLetterCount(),
+                latency.snapshot(), service.getRequeueLockHold());
+        service.shutDown();
+        return result;
+    }
+
+    private static void await(CountDownLatch start)
+    {
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static void print(Result result)
+    {
+        Scenario scenario=result.scenario;
+        report.printf(Locale.ROOT, "producers=%d consumers=%d partitions=%d batch=%-3d ackFailure=%.2f %,12.0f msg/s  "
+                        + "p50=%,9d us  p99=%,9d us  p999=%,9d us  dlq=%,d  requeueLock p99=%,d ns max=%,d ns%n",
+                scenario.producers, scenario.consumers, scenario.partitions, scenario.batchSize, scenario.ackFailureRate,
+                result.messagesPerSecond(), result.latency.valueAtPercentile(50)/1000,
+                result.latency.valueAtPercentile(99)/1000, result.latency.valueAtPercentile(99.9)/1000,
+                result.deadLettered, result.requeueLockHold.valueAtPercentile(99), result.requeueLockHold.getMax());
+    }
+
+    static String toJson(List<Result> results)
+    {
+        StringBuilder json=new StringBuilder("[\n");
+        for(int i=0;i<results.size();i++)
+        {
+            Result result=results.get(i);
+            Scenario scenario=result.scenario;
+            json.append(String.format(Locale.ROOT, "  {\"producers\": %d, \"consumers\": %d, \"partitions\": %d, "
+                            + "\"batchSize\": %d, \"ackFailureRate\": %.3f, \"durationNanos\": %d, \"produced\": %d, "
+                            + "\"acked\": %d, \"messagesPerSecond\": %.1f, \"deadLettered\": %d, "
+                            + "\"latencyNanos\": %s, \"requeueLockHoldNanos\": %s}",
+                    scenario.producers, scenario.consumers, scenario.partitions, scenario.batchSize,
+                    scenario.ackFailureRate, result.elapsedNanos, result.produced, result.acked,
+                    result.messagesPerSecond(), result.deadLettered, toJson(result.latency),
+                    toJson(result.requeueLockHold)));
+            json.append(i+1<results.size() ? ",\n" : "\n");
+        }
+        return json.append("]\n").toString();
+    }
+
+    static String toJson(NanosHistogram snapshot)
+    {
+        return "{\"count\": "+snapshot.getCount()+", \"p50\": "+snapshot.valueAtPercentile(50)
+                +", \"p99\": "+snapshot.valueAtPercentile(99)+", \"p999\": "+snapshot.valueAtPercentile(99.9)
+                +", \"max\": "+snapshot.getMax()+"}";
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long durationMillis=args.length>0 ? Long.parseLong(args[0]) : 1000;
+        String output=args.length>1 ? args[1] : "message-queue-benchmark.json";
+        List<Result> results=new ArrayList<>();
+        // MessageQueue prints every polled batch and DLQ move; measure it as it is, with stdout discarded.
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for(int producers:PRODUCERS)
+                for(int consumers:CONSUMERS)
+                    for(int partitions:PARTITIONS)
+                        for(int batchSize:BATCH_SIZES)
+                            for(double ackFailureRate:ACK_FAILURE_RATES)
+                            {
+                                Scenario scenario=new Scenario(producers, consumers, partitions, batchSize, ackFailureRate);
+                                run(scenario, durationMillis/4);
+                                Result result=run(scenario, durationMillis);
+                                print(result);
+                                results.add(result);
+                            }
+        } finally {
+            System.setOut(report);
+        }
+        Files.write(Paths.get(output), toJson(results).getBytes(StandardCharsets.UTF_8));
+        report.println("Wrote "+results.size()+" results to "+output);
+    }
+}
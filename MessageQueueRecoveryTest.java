@@ -0,0 +1,53 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Restarts a persistent MessageQueueService over the log of one that was never shut down, and checks that
+// messages in flight at the "crash" can still be acked by msgId after recovery.
+// Usage: java MessageQueueRecoveryTest
+public class MessageQueueRecoveryTest {
+
+    static final int PARTITIONS=4;
+    static final int MESSAGES=100;
+
+    static void check(boolean condition, String failure)
+    {
+        if(!condition)
+            throw new IllegalStateException(failure);
+    }
+
+    public static void main(String[] args) throws IOException {
+        PrintStream report=System.out;
+        Path logDirectory=Files.createTempDirectory("message-queue-recovery");
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        List<String> inFlight=new ArrayList<>();
+        MessageQueueService recovered=null;
+        try {
+            MessageQueueService crashed=new MessageQueueService(PARTITIONS, 5, 60_000, logDirectory.toString(), 1<<16);
+            for(int i=0;i<MESSAGES;i++)
+                crashed.addMessage(new Msg("m"+i, "payload "+i));
+            for(Msg message:crashed.poll(MESSAGES/2))
+                inFlight.add(message.getMsgId());
+            check(inFlight.size()==MESSAGES/2, "expected "+MESSAGES/2+" deliveries, got "+inFlight.size());
+            // No shutDown: the next service replays the same log as if the process had died here.
+            crashed.scheduledExecutorService.shutdownNow();
+
+            recovered=new MessageQueueService(PARTITIONS, 5, 60_000, logDirectory.toString(), 1<<16);
+            for(String msgId:inFlight)
+                recovered.ack(msgId);
+            List<Msg> rest=recovered.poll(MESSAGES);
+            check(rest.size()==MESSAGES-inFlight.size(), "expected "+(MESSAGES-inFlight.size())+" pending, got "+rest.size());
+            for(Msg message:rest)
+                check(!inFlight.contains(message.getMsgId()), "acked message "+message.getMsgId()+" was delivered again");
+        } finally {
+            if(recovered!=null)
+                recovered.shutDown();
+            System.setOut(report);
+        }
+        report.println("Recovered and acked "+inFlight.size()+" in-flight messages across "+PARTITIONS+" partitions");
+    }
+}
@@ -1,133 +1,2049 @@
 import lombok.Data;
+import lombok.Getter;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
 
 @Data
 class Msg{
     String msgId;
     String payload;
+    // Partition routing key; messages without one are spread round-robin.
+    String key;
+    // FIFO group: one batch of a group is in flight at a time, and the group routes like a key.
+    String groupId;
     int deliveryAttempt;
+    // Set only on the copies handed to consumers; identifies that one delivery.
+    String receiptHandle;
     Msg(String id, String payload)
+    {
+        this(id, payload, null);
+    }
+
+    Msg(String id, String payload, String key)
+    {
+        this(id, payload, key, null);
+    }
+
+    Msg(String id, String payload, String key, String groupId)
     {
         this.msgId=id;
         this.payload=payload;
+        this.key=key;
+        this.groupId=groupId;
         this.deliveryAttempt=0;
     }
-}
 
-@Data
-class InFlightMessage{
-    Msg message;
-    Instant visibilityDeadline;
-    InFlightMessage(Msg message, Instant visibilityDeadline)
+    Msg delivery(String receiptHandle)
+    {
+        Msg copy=new Msg(msgId, payload, key, groupId);
+        copy.deliveryAttempt=deliveryAttempt;
+        copy.receiptHandle=receiptHandle;
+        return copy;
+    }
+}
+
+// Entry in a HierarchicalTimer; subclasses decide what happens when it comes due.
+abstract class TimerTask{
+    final long expirationMs;
+    volatile boolean cancelled;
+    TimerBucket bucket;
+    TimerTask prev;
+    TimerTask next;
+    TimerTask(long expirationMs)
+    {
+        this.expirationMs=expirationMs;
+    }
+
+    abstract void expire();
+
+    // O(1). If the timer is moving the task between wheels right now the unlink can miss,
+    // but the flag keeps it from being re-added or expired.
+    void cancel()
+    {
+        cancelled=true;
+        TimerBucket current=bucket;
+        if(current!=null)
+            current.remove(this);
+    }
+}
+
+// One slot of a timing wheel: a doubly linked list of tasks sharing the slot's expiration.
+class TimerBucket implements Delayed{
+    private final TimerTask root=new TimerTask(-1) {
+        @Override
+        void expire() {
+        }
+    };
+    private final AtomicLong expiration=new AtomicLong(-1);
+    TimerBucket()
+    {
+        root.next=root;
+        root.prev=root;
+    }
+
+    synchronized void add(TimerTask task)
+    {
+        TimerTask tail=root.prev;
+        task.next=root;
+        task.prev=tail;
+        tail.next=task;
+        root.prev=task;
+        task.bucket=this;
+    }
+
+    synchronized void remove(TimerTask task)
+    {
+        if(task.bucket!=this)
+            return;
+        task.prev.next=task.next;
+        task.next.prev=task.prev;
+        task.next=null;
+        task.prev=null;
+        task.bucket=null;
+    }
+
+    synchronized void flushTo(List<TimerTask> tasks)
+    {
+        TimerTask task=root.next;
+        while(task!=root)
+        {
+            TimerTask next=task.next;
+            remove(task);
+            tasks.add(task);
+            task=next;
+        }
+        expiration.set(-1);
+    }
+
+    // True when the bucket was reused for a new slot time and has to be queued again.
+    boolean setExpiration(long expirationMs)
+    {
+        return expiration.getAndSet(expirationMs)!=expirationMs;
+    }
+
+    long getExpiration()
+    {
+        return expiration.get();
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(Math.max(getExpiration()-HierarchicalTimer.nowMs(), 0), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+        return Long.compare(getExpiration(), ((TimerBucket) other).getExpiration());
+    }
+}
+
+class TimingWheel{
+    private final long tickMs;
+    private final int wheelSize;
+    private final long interval;
+    private final TimerBucket[] buckets;
+    private final DelayQueue<TimerBucket> dueBuckets;
+    private long currentTime;
+    private volatile TimingWheel overflowWheel;
+
+    TimingWheel(long tickMs, int wheelSize, long startMs, DelayQueue<TimerBucket> dueBuckets)
+    {
+        this.tickMs=tickMs;
+        this.wheelSize=wheelSize;
+        this.interval=tickMs*wheelSize;
+        this.buckets=new TimerBucket[wheelSize];
+        for(int i=0;i<wheelSize;i++)
+            buckets[i]=new TimerBucket();
+        this.dueBuckets=dueBuckets;
+        this.currentTime=startMs-(startMs%tickMs);
+    }
+
+    // False when the task is already due and should be expired by the caller.
+    boolean add(TimerTask task)
+    {
+        long expiration=task.expirationMs;
+        if(task.cancelled)
+            return true;
+        if(expiration<currentTime+tickMs)
+            return false;
+        if(expiration<currentTime+interval)
+        {
+            long virtualId=expiration/tickMs;
+            TimerBucket bucket=buckets[(int)(virtualId%wheelSize)];
+            bucket.add(task);
+            if(bucket.setExpiration(virtualId*tickMs))
+                dueBuckets.offer(bucket);
+            return true;
+        }
+        if(overflowWheel==null)
+            addOverflowWheel();
+        return overflowWheel.add(task);
+    }
+
+    private synchronized void addOverflowWheel()
+    {
+        if(overflowWheel==null)
+            overflowWheel=new TimingWheel(interval, wheelSize, currentTime, dueBuckets);
+    }
+
+    void advanceClock(long timeMs)
+    {
+        if(timeMs>=currentTime+tickMs)
+        {
+            currentTime=timeMs-(timeMs%tickMs);
+            if(overflowWheel!=null)
+                overflowWheel.advanceClock(currentTime);
+        }
+    }
+}
+
+// Hierarchical timing wheel: one bucket per tick on the lowest wheel and coarser wheels above it for far deadlines,
+// so adding and cancelling are O(1). Only non-empty buckets sit in the DelayQueue, so an idle timer just sleeps.
+class HierarchicalTimer{
+    private final DelayQueue<TimerBucket> dueBuckets=new DelayQueue<>();
+    private final TimingWheel wheel;
+    // Adds run under the read lock, advancing the clock under the write lock.
+    private final ReentrantReadWriteLock lock=new ReentrantReadWriteLock();
+
+    HierarchicalTimer(long tickMs, int wheelSize)
+    {
+        this.wheel=new TimingWheel(tickMs, wheelSize, nowMs(), dueBuckets);
+    }
+
+    static long nowMs()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    void add(TimerTask task)
+    {
+        boolean added;
+        lock.readLock().lock();
+        try {
+            added=wheel.add(task);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if(!added && !task.cancelled)
+            task.expire();
+    }
+
+    // Waits up to timeoutMs for a bucket to come due, then expires its tasks or cascades them to a finer wheel.
+    // Tasks are handled after the bucket lock is released, so expire() may take other locks that cancel() is called under.
+    boolean advance(long timeoutMs) throws InterruptedException {
+        TimerBucket bucket=dueBuckets.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        if(bucket==null)
+            return false;
+        List<TimerTask> due=new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            while(bucket!=null)
+            {
+                wheel.advanceClock(bucket.getExpiration());
+                bucket.flushTo(due);
+                bucket=dueBuckets.poll();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for(TimerTask task:due)
+            add(task);
+        return true;
+    }
+}
+
+// A message enqueued with a delay, parked on the queue's timer until it may become visible.
+class DelayedMessage extends TimerTask{
+    final Msg message;
+    final MessageQueue owner;
+    DelayedMessage(Msg message, MessageQueue owner, long visibleAtMs)
+    {
+        super(visibleAtMs);
+        this.message=message;
+        this.owner=owner;
+    }
+
+    @Override
+    void expire() {
+        owner.makeVisible(message);
+    }
+}
+
+@Getter
+class InFlightMessage extends TimerTask{
+    Msg message;
+    MessageQueue owner;
+    String receiptHandle;
+    InFlightMessage(Msg message, MessageQueue owner, String receiptHandle, long visibilityDeadlineMs)
+    {
+        super(visibilityDeadlineMs);
+        this.message= message;
+        this.owner=owner;
+        this.receiptHandle=receiptHandle;
+    }
+
+    @Override
+    void expire() {
+        owner.requeue(this);
+    }
+}
+// Dead letters of one partition, oldest first: up to memoryCapacity in memory, the rest in an append-only spill file.
+// Once anything has spilled, new arrivals spill too until the file is drained, so the file always holds the newest.
+// The file starts with the position of its first unread record, so a restart does not bring back redriven messages.
+class DeadLetterQueue implements Closeable{
+    static final int DEFAULT_MEMORY_CAPACITY=10_000;
+    // Every INDEX_INTERVAL-th spilled record's position is kept, so browsing seeks instead of scanning the file.
+    private static final int INDEX_INTERVAL=256;
+    private static final int FILE_HEADER=8;
+
+    Deque<Msg> messages;
+    private final int memoryCapacity;
+    // Null spills to a temporary file that is deleted on close.
+    private final Path spillPath;
+    private FileChannel spill;
+    private Path openedPath;
+    private long readPosition=FILE_HEADER;
+    private long writePosition=FILE_HEADER;
+    private long readOrdinal;
+    private long writeOrdinal;
+    private final List<Long> index=new ArrayList<>();
+
+    DeadLetterQueue()
+    {
+        this(DEFAULT_MEMORY_CAPACITY, null);
+    }
+
+    DeadLetterQueue(int memoryCapacity, Path spillPath)
+    {
+        this.messages=new ArrayDeque<>();
+        this.memoryCapacity=memoryCapacity;
+        this.spillPath=spillPath;
+        if(spillPath!=null && Files.exists(spillPath))
+            reopen();
+    }
+
+    synchronized void addMessage(Msg message)
+    {
+        if(writeOrdinal==readOrdinal && messages.size()<memoryCapacity)
+            this.messages.add(message);
+        else
+            spill(message);
+        System.out.println("Moved to DLQ Message with "+message.getMsgId());
+    }
+
+    synchronized long size()
+    {
+        return messages.size()+(writeOrdinal-readOrdinal);
+    }
+
+    // Up to max of the oldest dead letters, left in place until remove(count) commits them as taken.
+    // New dead letters only ever go to the tail, so the head stays the same in between.
+    synchronized List<Msg> peek(int max)
+    {
+        List<Msg> oldest=new ArrayList<>(Math.min(max, 1024));
+        for(Msg message:messages)
+        {
+            if(oldest.size()==max)
+                return oldest;
+            oldest.add(message);
+        }
+        try {
+            long position=readPosition;
+            for(long ordinal=readOrdinal;oldest.size()<max && ordinal<writeOrdinal;ordinal++)
+            {
+                ByteBuffer record=readRecord(position);
+                position+=4+record.capacity();
+                oldest.add(decode(record));
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        return oldest;
+    }
+
+    // Drops the count oldest dead letters and persists the new read position of the spill file.
+    synchronized void remove(int count)
+    {
+        while(count>0 && !messages.isEmpty())
+        {
+            messages.pollFirst();
+            count--;
+        }
+        if(count==0 || readOrdinal==writeOrdinal)
+            return;
+        try {
+            while(count-->0 && readOrdinal<writeOrdinal)
+            {
+                readPosition+=4+readInt(readPosition);
+                readOrdinal++;
+            }
+            if(readOrdinal==writeOrdinal)
+                resetSpill();
+            else
+                spill.write(ByteBuffer.allocate(FILE_HEADER).putLong(0, readPosition), 0);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    // A page of dead letters without removing them; offset counts from the oldest.
+    synchronized List<Msg> browse(long offset, int limit)
+    {
+        List<Msg> page=new ArrayList<>(limit);
+        long skipped=0;
+        for(Msg message:messages)
+        {
+            if(page.size()==limit)
+                return page;
+            if(skipped++>=offset)
+                page.add(message);
+        }
+        long ordinal=readOrdinal+Math.max(0, offset-messages.size());
+        if(ordinal>=writeOrdinal)
+            return page;
+        try {
+            long position=index.get((int)(ordinal/INDEX_INTERVAL));
+            for(long i=ordinal-ordinal%INDEX_INTERVAL;i<ordinal;i++)
+                position+=4+readInt(position);
+            while(page.size()<limit && ordinal++<writeOrdinal)
+            {
+                ByteBuffer record=readRecord(position);
+                position+=4+record.capacity();
+                page.add(decode(record));
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        return page;
+    }
+
+    // [length][msgId][payload][groupId][deliveryAttempt], strings as [length][utf-8] with -1 for null.
+    private void spill(Msg message)
+    {
+        ByteBuffer record=ByteBuffer.allocate(4+4+CommitLog.maxEncodedLength(message.getMsgId())
+                +4+CommitLog.maxEncodedLength(message.getPayload())+4+CommitLog.maxEncodedLength(message.getGroupId())+4);
+        record.position(4);
+        CommitLog.putString(record, message.getMsgId());
+        CommitLog.putString(record, message.getPayload());
+        CommitLog.putString(record, message.getGroupId());
+        record.putInt(message.getDeliveryAttempt()).flip();
+        record.putInt(0, record.limit()-4);
+        try {
+            if(spill==null)
+                openSpill();
+            if(writeOrdinal%INDEX_INTERVAL==0)
+                index.add(writePosition);
+            while(record.hasRemaining())
+                writePosition+=spill.write(record, writePosition);
+            writeOrdinal++;
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    private void openSpill() throws IOException {
+        openedPath=spillPath!=null ? spillPath : Files.createTempFile("dead-letters", ".spill");
+        spill=FileChannel.open(openedPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if(spill.size()<FILE_HEADER)
+            spill.write(ByteBuffer.allocate(FILE_HEADER).putLong(0, FILE_HEADER), 0);
+    }
+
+    // Picks up the spill file of a previous run, dropping a torn record at its end.
+    private void reopen()
+    {
+        try {
+            openSpill();
+            readPosition=readLong(0);
+            long size=spill.size();
+            long position=FILE_HEADER;
+            long ordinal=0;
+            while(position+4<=size)
+            {
+                int length=readInt(position);
+                if(length<=0 || position+4+length>size)
+                    break;
+                if(ordinal%INDEX_INTERVAL==0)
+                    index.add(position);
+                if(position==readPosition)
+                    readOrdinal=ordinal;
+                position+=4+length;
+                ordinal++;
+            }
+            spill.truncate(position);
+            writePosition=position;
+            writeOrdinal=ordinal;
+            if(readPosition>=writePosition)
+                resetSpill();
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    // Everything spilled has been taken: start the file over.
+    private void resetSpill() throws IOException {
+        spill.truncate(FILE_HEADER);
+        spill.write(ByteBuffer.allocate(FILE_HEADER).putLong(0, FILE_HEADER), 0);
+        readPosition=FILE_HEADER;
+        writePosition=FILE_HEADER;
+        readOrdinal=0;
+        writeOrdinal=0;
+        index.clear();
+    }
+
+    private int readInt(long position) throws IOException {
+        ByteBuffer buffer=ByteBuffer.allocate(4);
+        spill.read(buffer, position);
+        return buffer.getInt(0);
+    }
+
+    private long readLong(long position) throws IOException {
+        ByteBuffer buffer=ByteBuffer.allocate(8);
+        spill.read(buffer, position);
+        return buffer.getLong(0);
+    }
+
+    private ByteBuffer readRecord(long position) throws IOException {
+        ByteBuffer record=ByteBuffer.allocate(readInt(position));
+        while(record.hasRemaining())
+            spill.read(record, position+4+record.position());
+        return record.flip();
+    }
+
+    private static Msg decode(ByteBuffer record)
+    {
+        String msgId=readString(record);
+        String payload=readString(record);
+        Msg message=new Msg(msgId, payload, null, readString(record));
+        message.setDeliveryAttempt(record.getInt());
+        return message;
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        int length=buffer.getInt();
+        if(length<0)
+            return null;
+        byte[] bytes=new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(spill==null)
+            return;
+        spill.close();
+        if(spillPath==null)
+            Files.deleteIfExists(openedPath);
+    }
+}
+class LogSegment{
+    final long id;
+    final Path path;
+    final FileChannel channel;
+    final MappedByteBuffer buffer;
+    // Messages enqueued in this segment that are not acked or dead-lettered yet.
+    int liveMessages;
+    LogSegment(long id, Path path, FileChannel channel, MappedByteBuffer buffer)
+    {
+        this.id=id;
+        this.path=path;
+        this.channel=channel;
+        this.buffer=buffer;
+    }
+}
+
+// Write-ahead log for a MessageQueue: fixed-size memory-mapped segments of [length][crc32c][type + fields] records.
+// Not thread-safe; the owning queue calls it under its own lock.
+// Segments are only deleted from the head, so an ack can never outlive the enqueue it cancels.
+class CommitLog implements Closeable{
+    static final byte ENQUEUE=1;
+    static final byte DELIVER=2;
+    static final byte ACK=3;
+    static final byte DEAD=4;
+    private static final int HEADER=8;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ArrayDeque<LogSegment> segments=new ArrayDeque<>();
+    private final Map<String, LogSegment> segmentOf=new HashMap<>();
+    private final CRC32C crc=new CRC32C();
+    private final ExecutorService cleaner;
+    private ByteBuffer scratch=ByteBuffer.allocate(256);
+    private LogSegment active;
+    private long nextSegmentId;
+
+    CommitLog(String directory, int segmentSize)
+    {
+        this.directory=Paths.get(directory);
+        this.segmentSize=segmentSize;
+        this.cleaner=Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread=new Thread(runnable, "commit-log-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    Path getDirectory()
+    {
+        return directory;
+    }
+
+    // Replays the segments of a previous run into pending (never delivered) and inFlight (delivered, not acked),
+    // both in enqueue order with their delivery attempts, then opens a fresh segment for new records.
+    // Delayed pending messages also get their wall-clock visibility time in visibleAt.
+    void recover(Collection<Msg> pending, Collection<Msg> inFlight, Map<String, Long> visibleAt)
+    {
+        LinkedHashMap<String, Msg> unacked=new LinkedHashMap<>();
+        Set<String> delivered=new HashSet<>();
+        try {
+            Files.createDirectories(directory);
+            List<Path> paths=new ArrayList<>();
+            try (DirectoryStream<Path> stream=Files.newDirectoryStream(directory, "*.seg")) {
+                stream.forEach(paths::add);
+            }
+            Collections.sort(paths);
+            for(Path path:paths)
+            {
+                long id=Long.parseLong(path.getFileName().toString().replace(".seg", ""));
+                FileChannel channel=FileChannel.open(path, StandardOpenOption.READ);
+                LogSegment segment=new LogSegment(id, path, channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                segments.addLast(segment);
+                replay(segment, unacked, delivered, visibleAt);
+                nextSegmentId=id+1;
+            }
+            openSegment(segmentSize);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        for(Msg message:unacked.values())
+        {
+            if(delivered.contains(message.getMsgId()))
+            {
+                inFlight.add(message);
+                visibleAt.remove(message.getMsgId());
+            }
+            else
+                pending.add(message);
+        }
+        pruneHead();
+    }
+
+    // Stops at the zero-filled tail, or at the first torn or corrupt record.
+    private void replay(LogSegment segment, Map<String, Msg> unacked, Set<String> delivered, Map<String, Long> visibleAt)
+    {
+        ByteBuffer buffer=segment.buffer;
+        while(buffer.remaining()>=HEADER)
+        {
+            int length=buffer.getInt();
+            int checksum=buffer.getInt();
+            if(length<=0 || length>buffer.remaining())
+                break;
+            crc.reset();
+            crc.update(buffer.duplicate().limit(buffer.position()+length));
+            if((int) crc.getValue()!=checksum)
+            {
+                System.out.println("Corrupt record in "+segment.path+" at "+(buffer.position()-HEADER)+", skipping rest of segment");
+                break;
+            }
+            byte type=buffer.get();
+            String msgId=readString(buffer);
+            switch (type)
+            {
+                case ENQUEUE:
+                    // A re-enqueue of a live id replaces it, as the queue did at the time.
+                    release(msgId);
+                    String payload=readString(buffer);
+                    unacked.put(msgId, new Msg(msgId, payload, null, readString(buffer)));
+                    long visibleAtMillis=buffer.getLong();
+                    if(visibleAtMillis>0)
+                        visibleAt.put(msgId, visibleAtMillis);
+                    segment.liveMessages++;
+                    segmentOf.put(msgId, segment);
+                    break;
+                case DELIVER:
+                    int attempt=buffer.getInt();
+                    Msg message=unacked.get(msgId);
+                    if(message!=null)
+                    {
+                        message.setDeliveryAttempt(attempt);
+                        delivered.add(msgId);
+                    }
+                    break;
+                case ACK:
+                case DEAD:
+                    unacked.remove(msgId);
+                    delivered.remove(msgId);
+                    visibleAt.remove(msgId);
+                    release(msgId);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown record type "+type+" in "+segment.path);
+            }
+        }
+    }
+
+    // A length of -1 stands for null.
+    private static String readString(ByteBuffer buffer)
+    {
+        int length=buffer.getInt();
+        if(length<0)
+            return null;
+        byte[] bytes=new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // visibleAtMillis is wall-clock so it survives a restart; 0 means visible right away.
+    // A msgId that is still live is rejected: its second enqueue would keep the first segment from ever being pruned.
+    void appendEnqueue(Msg message, long visibleAtMillis)
+    {
+        String msgId=message.getMsgId();
+        if(msgId==null)
+            throw new IllegalArgumentException("Message id must not be null");
+        // One lookup both checks and claims the id, for the active segment; a roll below moves the claim.
+        LogSegment claimed=active;
+        if(segmentOf.putIfAbsent(msgId, claimed)!=null)
+            throw new IllegalStateException("Message id "+msgId+" is already in the queue");
+        LogSegment segment;
+        try {
+            ByteBuffer body=body(ENQUEUE, msgId, 4+maxEncodedLength(message.getPayload())+4
+                    +maxEncodedLength(message.getGroupId())+8);
+            putString(body, message.getPayload());
+            putString(body, message.getGroupId());
+            body.putLong(visibleAtMillis);
+            segment=write(body);
+        } catch (RuntimeException exception) {
+            segmentOf.remove(msgId);
+            throw exception;
+        }
+        segment.liveMessages++;
+        if(segment!=claimed)
+            segmentOf.put(msgId, segment);
+    }
+
+    // True while msgId has been enqueued and not yet acked or dead-lettered.
+    boolean isLive(String msgId)
+    {
+        return segmentOf.containsKey(msgId);
+    }
+
+    void appendDeliver(Msg message)
+    {
+        ByteBuffer body=body(DELIVER, message.getMsgId(), 4);
+        body.putInt(message.getDeliveryAttempt());
+        write(body);
+    }
+
+    void appendAck(String msgId)
+    {
+        write(body(ACK, msgId, 0));
+        release(msgId);
+        pruneHead();
+    }
+
+    void appendDead(String msgId)
+    {
+        write(body(DEAD, msgId, 0));
+        release(msgId);
+        pruneHead();
+    }
+
+    // extra is an upper bound on the bytes the caller adds after the id.
+    private ByteBuffer body(byte type, String msgId, int extra)
+    {
+        int length=1+4+maxEncodedLength(msgId)+extra;
+        if(scratch.capacity()<length)
+            scratch=ByteBuffer.allocate(Math.max(length, scratch.capacity()*2));
+        scratch.clear();
+        scratch.put(type);
+        putString(scratch, msgId);
+        return scratch;
+    }
+
+    // Room putString may need: 3 bytes per char, as a surrogate pair encodes its 2 chars in 4.
+    static int maxEncodedLength(String text)
+    {
+        return text==null ? 0 : 3*text.length();
+    }
+
+    // The counterpart of readString, [length][utf-8] with -1 for null, encoded straight into a heap buffer with
+    // maxEncodedLength bytes free. Produces the same bytes as getBytes(UTF_8), '?' for an unpaired surrogate
+    // included, without allocating.
+    static void putString(ByteBuffer buffer, String text)
+    {
+        if(text==null)
+        {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] out=buffer.array();
+        int start=buffer.arrayOffset()+buffer.position()+4;
+        int at=start;
+        int length=text.length();
+        for(int i=0;i<length;i++)
+        {
+            char c=text.charAt(i);
+            if(c<0x80)
+                out[at++]=(byte) c;
+            else if(c<0x800)
+            {
+                out[at++]=(byte)(0xC0|c>>6);
+                out[at++]=(byte)(0x80|c&0x3F);
+            }
+            else if(!Character.isSurrogate(c))
+            {
+                out[at++]=(byte)(0xE0|c>>12);
+                out[at++]=(byte)(0x80|c>>6&0x3F);
+                out[at++]=(byte)(0x80|c&0x3F);
+            }
+            else if(Character.isHighSurrogate(c) && i+1<length && Character.isLowSurrogate(text.charAt(i+1)))
+            {
+                int codePoint=Character.toCodePoint(c, text.charAt(++i));
+                out[at++]=(byte)(0xF0|codePoint>>18);
+                out[at++]=(byte)(0x80|codePoint>>12&0x3F);
+                out[at++]=(byte)(0x80|codePoint>>6&0x3F);
+                out[at++]=(byte)(0x80|codePoint&0x3F);
+            }
+            else
+                out[at++]='?';
+        }
+        buffer.putInt(at-start);
+        buffer.position(at-buffer.arrayOffset());
+    }
+
+    private LogSegment write(ByteBuffer body)
+    {
+        body.flip();
+        int length=body.remaining();
+        if(HEADER+length>active.buffer.remaining())
+            roll(HEADER+length);
+        crc.reset();
+        crc.update(body.array(), 0, length);
+        active.buffer.putInt(length).putInt((int) crc.getValue()).put(body);
+        return active;
+    }
+
+    private void release(String msgId)
+    {
+        LogSegment segment=segmentOf.remove(msgId);
+        if(segment!=null)
+            segment.liveMessages--;
+    }
+
+    private void roll(int minimumSize)
+    {
+        try {
+            active.buffer.force();
+            openSegment(Math.max(segmentSize, minimumSize));
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    private void openSegment(int size) throws IOException {
+        long id=nextSegmentId++;
+        Path path=directory.resolve(String.format("%020d.seg", id));
+        FileChannel channel=FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        active=new LogSegment(id, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        segments.addLast(active);
+    }
+
+    // Deletes fully acked segments from the head of the log in the background.
+    private void pruneHead()
+    {
+        while(segments.peekFirst()!=active && segments.peekFirst().liveMessages==0)
+        {
+            LogSegment segment=segments.pollFirst();
+            cleaner.submit(() -> delete(segment));
+        }
+    }
+
+    private static void delete(LogSegment segment)
+    {
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        active.buffer.force();
+        for(LogSegment segment:segments)
+            segment.channel.close();
+        cleaner.shutdown();
+    }
+}
+
+class MessageGroup{
+    final String groupId;
+    final Deque<Msg> pending=new ArrayDeque<>();
+    // The batch currently out, in delivery order, and how much of it is still unacked.
+    final List<Msg> inFlight=new ArrayList<>();
+    int unacked;
+    MessageGroup(String groupId)
+    {
+        this.groupId=groupId;
+    }
+}
+
+// Nanosecond timings, safe to record from any thread. Each power of two is split into 8 linear sub-buckets, so a
+// percentile, reported as its bucket's upper bound capped at the largest value recorded, is within 1/8 of the truth.
+class NanosHistogram{
+    private static final int SUB_BUCKET_BITS=3;
+    private static final int SUB_BUCKETS=1<<SUB_BUCKET_BITS;
+    private final AtomicLongArray counts=new AtomicLongArray((64-SUB_BUCKET_BITS+1)*SUB_BUCKETS);
+    private final AtomicLong max=new AtomicLong();
+
+    void record(long nanos)
+    {
+        nanos=Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(nanos));
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    static int indexOf(long value)
+    {
+        if(value<SUB_BUCKETS)
+            return (int) value;
+        int magnitude=63-Long.numberOfLeadingZeros(value);
+        int subBucket=(int)(value>>>(magnitude-SUB_BUCKET_BITS)) & (SUB_BUCKETS-1);
+        return (magnitude-SUB_BUCKET_BITS+1)*SUB_BUCKETS+subBucket;
+    }
+
+    static long lowestValueAt(int index)
+    {
+        if(index<SUB_BUCKETS)
+            return index;
+        int magnitude=index/SUB_BUCKETS+SUB_BUCKET_BITS-1;
+        return ((long)(SUB_BUCKETS+index%SUB_BUCKETS))<<(magnitude-SUB_BUCKET_BITS);
+    }
+
+    long getCount()
+    {
+        long count=0;
+        for(int i=0;i<counts.length();i++)
+            count+=counts.get(i);
+        return count;
+    }
+
+    long getMax()
+    {
+        return max.get();
+    }
+
+    long valueAtPercentile(double percentile)
+    {
+        long target=(long) Math.ceil(percentile/100.0*getCount());
+        long seen=0;
+        for(int i=0;i<counts.length();i++)
+        {
+            seen+=counts.get(i);
+            if(seen>=target && seen>0)
+                return i+1<counts.length() ? Math.min(max.get(), lowestValueAt(i+1)-1) : max.get();
+        }
+        return max.get();
+    }
+
+    // A copy that later records do not change.
+    NanosHistogram snapshot()
+    {
+        NanosHistogram copy=new NanosHistogram();
+        for(int i=0;i<counts.length();i++)
+            copy.counts.set(i, counts.get(i));
+        copy.max.set(max.get());
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "count="+getCount()+" p50="+valueAtPercentile(50)+" p99="+valueAtPercentile(99)
+                +" p999="+valueAtPercentile(99.9)+" max="+getMax();
+    }
+}
+class MessageQueue{
+    // Messages without a group.
+    Deque<Msg> messageQueue;
+    Map<String, MessageGroup> groups;
+    // Groups with pending messages and nothing in flight, in round-robin order; a group is in here at most once.
+    Deque<MessageGroup> readyGroups;
+    private boolean groupsFirst;
+    Map<String, InFlightMessage> inFlightMessages;
+    // Visibility deadlines and delayed messages live in a hierarchical timing wheel, so expiry and ack never scan
+    // the in-flight map and a delayed message costs one timer entry.
+    HierarchicalTimer visibilityTimer;
+    int maxRetries;
+    long visibilityTimeoutInMs;
+    DeadLetterQueue dlq;
+    // One redrive at a time, so two cannot peek the same dead letters.
+    private final Object redriveLock=new Object();
+    // Dead letters dropped by redrive because their msgId was live again; guarded by this.
+    long redriveDuplicates;
+    // Null keeps the queue in memory only.
+    CommitLog commitLog;
+    // Told whenever messages become visible; called under this queue's monitor.
+    Runnable availabilityListener=() -> {};
+    // Receipt handles are "partition:deliveryId:msgId", so a stale receipt never matches a newer delivery.
+    final int partitionIndex;
+    // Shared by the partitions of one PartitionedMessageQueue: msgId to partition for every in-flight message,
+    // kept in step with inFlightMessages so ack(msgId) finds its partition. Null for a standalone queue.
+    final Map<String, Integer> inFlightIndex;
+    private long nextDeliveryId;
+    // How long each expiry requeue holds this queue's lock; partitions of one queue share it.
+    NanosHistogram requeueLockNanos=new NanosHistogram();
+
+    MessageQueue(int maxRetries, long visibilityTimeoutInMs)
+    {
+        this(maxRetries, visibilityTimeoutInMs, new HierarchicalTimer(1, 64), null);
+    }
+
+    MessageQueue(int maxRetries, long visibilityTimeoutInMs, HierarchicalTimer visibilityTimer, CommitLog commitLog)
+    {
+        this(maxRetries, visibilityTimeoutInMs, visibilityTimer, commitLog, 0, null);
+    }
+
+    MessageQueue(int maxRetries, long visibilityTimeoutInMs, HierarchicalTimer visibilityTimer, CommitLog commitLog,
+                 int partitionIndex, Map<String, Integer> inFlightIndex)
+    {
+        this.partitionIndex=partitionIndex;
+        this.inFlightIndex=inFlightIndex;
+        this.messageQueue=new ArrayDeque<>();
+        this.groups=new HashMap<>();
+        this.readyGroups=new ArrayDeque<>();
+        this.inFlightMessages=new HashMap<>();
+        this.visibilityTimer=visibilityTimer;
+        this.maxRetries=maxRetries;
+        this.visibilityTimeoutInMs =visibilityTimeoutInMs;
+        // With a commit log, dead letters go straight to disk so they are as durable as the queue itself.
+        this.dlq=commitLog==null ? new DeadLetterQueue()
+                : new DeadLetterQueue(0, commitLog.getDirectory().resolve("dead-letters.spill"));
+        this.commitLog=commitLog;
+        if(commitLog!=null)
+            recover();
+    }
+
+    // Messages that were in flight at the crash get a fresh visibility timeout, so a consumer can still ack them.
+    private synchronized void recover()
+    {
+        List<Msg> pending=new ArrayList<>();
+        List<Msg> inFlight=new ArrayList<>();
+        Map<String, Long> visibleAt=new HashMap<>();
+        commitLog.recover(pending, inFlight, visibleAt);
+        for(Msg message:inFlight)
+            track(message);
+        long now=System.currentTimeMillis();
+        for(Msg message:pending)
+        {
+            Long visibleAtMillis=visibleAt.get(message.getMsgId());
+            if(visibleAtMillis!=null && visibleAtMillis>now)
+                visibilityTimer.add(new DelayedMessage(message, this, HierarchicalTimer.nowMs()+visibleAtMillis-now));
+            else
+                addVisible(message);
+        }
+        System.out.println("Recovered "+pending.size()+" pending and "+inFlight.size()+" in-flight messages");
+    }
+
+    synchronized void enqueue(Msg message)
+    {
+        if(commitLog!=null)
+            commitLog.appendEnqueue(message, 0);
+        addVisible(message);
+        availabilityListener.run();
+    }
+
+    // The message only joins the deque, or its group, once delayMs has passed.
+    synchronized void enqueue(Msg message, long delayMs)
+    {
+        if(delayMs<=0)
+        {
+            enqueue(message);
+            return;
+        }
+        if(commitLog!=null)
+            commitLog.appendEnqueue(message, System.currentTimeMillis()+delayMs);
+        visibilityTimer.add(new DelayedMessage(message, this, HierarchicalTimer.nowMs()+delayMs));
+    }
+
+    synchronized void makeVisible(Msg message)
+    {
+        addVisible(message);
+        availabilityListener.run();
+    }
+
+    private void addVisible(Msg message)
+    {
+        if(message.getGroupId()==null)
+        {
+            messageQueue.addLast(message);
+            return;
+        }
+        MessageGroup group=groups.computeIfAbsent(message.getGroupId(), MessageGroup::new);
+        group.pending.addLast(message);
+        if(group.pending.size()==1 && group.unacked==0)
+            readyGroups.addLast(group);
+    }
+
+    private InFlightMessage track(Msg message)
+    {
+        String receiptHandle=partitionIndex+":"+(nextDeliveryId++)+":"+message.getMsgId();
+        InFlightMessage inFlightMessage=new InFlightMessage(message,this,receiptHandle,HierarchicalTimer.nowMs()+visibilityTimeoutInMs);
+        inFlightMessages.put(message.getMsgId(),inFlightMessage);
+        if(inFlightIndex!=null)
+            inFlightIndex.put(message.getMsgId(), partitionIndex);
+        visibilityTimer.add(inFlightMessage);
+        if(message.getGroupId()!=null)
+        {
+            MessageGroup group=groups.computeIfAbsent(message.getGroupId(), MessageGroup::new);
+            group.inFlight.add(message);
+            group.unacked++;
+        }
+        return inFlightMessage;
+    }
+
+    // -1 if the handle is not of the form "partition:deliveryId:msgId".
+    static int partitionOf(String receiptHandle)
+    {
+        if(receiptHandle==null)
+            return -1;
+        int first=receiptHandle.indexOf(':');
+        int second=first<0 ? -1 : receiptHandle.indexOf(':', first+1);
+        if(second<0)
+            return -1;
+        try {
+            Long.parseLong(receiptHandle, first+1, second, 10);
+            return Math.max(-1, Integer.parseInt(receiptHandle, 0, first, 10));
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
+    }
+
+    static String msgIdOf(String receiptHandle)
+    {
+        return receiptHandle.substring(receiptHandle.indexOf(':', receiptHandle.indexOf(':')+1)+1);
+    }
+
+    private void untrack(String msgId)
+    {
+        inFlightMessages.remove(msgId);
+        if(inFlightIndex!=null)
+            inFlightIndex.remove(msgId);
+    }
+
+    private InFlightMessage current(String receiptHandle)
+    {
+        if(partitionOf(receiptHandle)!=partitionIndex)
+            return null;
+        InFlightMessage inFlightMessage=inFlightMessages.get(msgIdOf(receiptHandle));
+        if(inFlightMessage==null || !inFlightMessage.getReceiptHandle().equals(receiptHandle))
+            return null;
+        return inFlightMessage;
+    }
+
+    // Grouped and ungrouped messages take turns going first, so neither can starve the other.
+    synchronized List<Msg> poll(int batchSize)
+    {
+        List<Msg> results=new ArrayList<>();
+        groupsFirst=!groupsFirst;
+        if(groupsFirst)
+            pollGroups(results, batchSize);
+        while(!messageQueue.isEmpty()&& results.size()<batchSize)
+            deliver(messageQueue.removeFirst(), results);
+        if(!groupsFirst)
+            pollGroups(results, batchSize);
+        System.out.println(results);
+        return results;
+    }
+
+    // Round-robin over unlocked groups: the head group gives up to the rest of the batch, in order,
+    // and stays locked until all of that is acked. O(1) per group, no scan over idle groups.
+    private void pollGroups(List<Msg> results, int batchSize)
+    {
+        while(results.size()<batchSize && !readyGroups.isEmpty())
+        {
+            MessageGroup group=readyGroups.pollFirst();
+            while(results.size()<batchSize && !group.pending.isEmpty())
+                deliver(group.pending.pollFirst(), results);
+            if(group.unacked==0)
+                release(group);
+        }
+    }
+
+    private void deliver(Msg message, List<Msg> results)
+    {
+        message.setDeliveryAttempt(message.getDeliveryAttempt()+1);
+        if(message.getDeliveryAttempt()>maxRetries)
+        {
+            System.out.println("Maximum retry completed for the Message "+message.getMsgId());
+            if(commitLog!=null)
+                commitLog.appendDead(message.getMsgId());
+            dlq.addMessage(message);
+            return;
+        }
+        if(commitLog!=null)
+            commitLog.appendDeliver(message);
+        results.add(message.delivery(track(message).getReceiptHandle()));
+    }
+
+    // An unlocked group goes to the back of the round-robin, or away entirely once it is empty.
+    private void release(MessageGroup group)
+    {
+        group.inFlight.clear();
+        if(group.pending.isEmpty())
+            groups.remove(group.groupId);
+        else
+            readyGroups.addLast(group);
+    }
+
+    private void complete(InFlightMessage inFlightMessage)
+    {
+        Msg message=inFlightMessage.getMessage();
+        untrack(message.getMsgId());
+        inFlightMessage.cancel();
+        if(commitLog!=null)
+            commitLog.appendAck(message.getMsgId());
+        if(message.getGroupId()!=null)
+        {
+            MessageGroup group=groups.get(message.getGroupId());
+            if(--group.unacked==0)
+                release(group);
+        }
+    }
+
+    synchronized void ack(String msgId)
+    {
+        InFlightMessage inFlightMessage=inFlightMessages.get(msgId);
+        if(inFlightMessage==null)
+            throw new IllegalStateException("Invalid Ack for message id "+msgId);
+        complete(inFlightMessage);
+    }
+
+    // One lock round for the whole batch. Stale receipts (the message was redelivered or already acked) are skipped;
+    // returns the ids that were acked.
+    synchronized List<String> ackBatch(List<String> receiptHandles)
+    {
+        List<String> acked=new ArrayList<>(receiptHandles.size());
+        for(String receiptHandle:receiptHandles)
+        {
+            InFlightMessage inFlightMessage=current(receiptHandle);
+            if(inFlightMessage==null)
+                continue;
+            complete(inFlightMessage);
+            acked.add(inFlightMessage.getMessage().getMsgId());
+        }
+        return acked;
+    }
+
+    // Pushes the visibility deadline of a current delivery out by extraMs; false if the receipt is stale.
+    synchronized boolean changeVisibility(String receiptHandle, long extraMs)
+    {
+        InFlightMessage inFlightMessage=current(receiptHandle);
+        if(inFlightMessage==null)
+            return false;
+        reschedule(inFlightMessage, inFlightMessage.expirationMs+extraMs);
+        return true;
+    }
+
+    // Restarts the delivery's visibility clock: it stays hidden for timeoutMs from now; 0 makes it visible again.
+    synchronized boolean setVisibility(String receiptHandle, long timeoutMs)
+    {
+        InFlightMessage inFlightMessage=current(receiptHandle);
+        if(inFlightMessage==null)
+            return false;
+        reschedule(inFlightMessage, HierarchicalTimer.nowMs()+timeoutMs);
+        return true;
+    }
+
+    private void reschedule(InFlightMessage inFlightMessage, long deadlineMs)
+    {
+        inFlightMessage.cancel();
+        InFlightMessage rescheduled=new InFlightMessage(inFlightMessage.getMessage(), this,
+                inFlightMessage.getReceiptHandle(), deadlineMs);
+        inFlightMessages.put(inFlightMessage.getMessage().getMsgId(), rescheduled);
+        visibilityTimer.add(rescheduled);
+    }
+
+    // Called by the timer when a visibility deadline passes. Identity check: an ack, or a newer delivery
+    // of the same message id, may have replaced this entry since the timer picked it up.
+    synchronized void requeue(InFlightMessage inFlightMessage)
+    {
+        long lockedAt=System.nanoTime();
+        try {
+            Msg message=inFlightMessage.getMessage();
+            if(inFlightMessages.get(message.getMsgId())!=inFlightMessage)
+                return;
+            if(message.getGroupId()==null)
+            {
+                untrack(message.getMsgId());
+                messageQueue.addLast(message);
+            }
+            else
+                requeueGroup(groups.get(message.getGroupId()));
+            availabilityListener.run();
+        } finally {
+            requeueLockNanos.record(System.nanoTime()-lockedAt);
+        }
+    }
+
+    // The whole unacked rest of the group's batch goes back to the head of the group in its original order,
+    // so a later message can never be delivered ahead of an earlier one.
+    private void requeueGroup(MessageGroup group)
+    {
+        for(int i=group.inFlight.size()-1;i>=0;i--)
+        {
+            Msg message=group.inFlight.get(i);
+            InFlightMessage current=inFlightMessages.get(message.getMsgId());
+            if(current==null || current.getMessage()!=message)
+                continue;
+            untrack(message.getMsgId());
+            current.cancel();
+            group.pending.addFirst(message);
+        }
+        group.unacked=0;
+        release(group);
+    }
+
+    // Runs one step of the visibility timer; blocks up to timeoutMs when nothing is due.
+    void requeueExpiredFlightMessage(long timeoutMs) throws InterruptedException {
+        visibilityTimer.advance(timeoutMs);
+    }
+
+    // Moves up to max dead letters back to the tail of this queue with their delivery attempts reset; returns how
+    // many left the DLQ. Takes the DLQ and queue locks one after the other, never nested, so it cannot deadlock with
+    // poll; a dead letter leaves the DLQ only once it is enqueued, so a failed append leaves the rest of the batch there.
+    // A dead letter whose msgId was enqueued again meanwhile is dropped and counted, as the live copy supersedes it.
+    int redriveDeadLetters(int max)
     {
-        this.message= message;
-        this.visibilityDeadline =visibilityDeadline;
+        synchronized (redriveLock)
+        {
+            List<Msg> messages=dlq.peek(max);
+            int taken=0;
+            try {
+                synchronized (this)
+                {
+                    int moved=0;
+                    for(Msg message:messages)
+                    {
+                        if(commitLog!=null && commitLog.isLive(message.getMsgId()))
+                        {
+                            redriveDuplicates++;
+                            System.out.println("Dropped dead letter "+message.getMsgId()+", a newer copy is queued");
+                            taken++;
+                            continue;
+                        }
+                        if(commitLog!=null)
+                            commitLog.appendEnqueue(message, 0);
+                        message.setDeliveryAttempt(0);
+                        addVisible(message);
+                        moved++;
+                        taken++;
+                    }
+                    if(moved>0)
+                        availabilityListener.run();
+                }
+            } finally {
+                dlq.remove(taken);
+            }
+            return taken;
+        }
+    }
+
+    synchronized void close() throws IOException {
+        dlq.close();
+        if(commitLog!=null)
+            commitLog.close();
     }
+
 }
-class DeadLetterQueue{
-    List<Msg> messages;
-    DeadLetterQueue()
+
+// Remembers message ids for at least windowMs. An open-addressing table keyed by id keeps, per slot, the id's hash
+// and the time bucket it was claimed in, unboxed in one long, so a lookup and a claim share one probe and allocate
+// nothing. Slots whose bucket has left the window count as free and are reused in place; a resize copies only live
+// ids, which bounds memory by the ids claimed in one window. Not thread-safe; callers lock it.
+class DeduplicationWindow{
+    private static final int INITIAL_CAPACITY=1024;
+    private final long bucketMs;
+    private final int bucketCount;
+    // hash<<32 | bucket for the id in the same slot of ids, 0 when the slot is empty. Probes read only this array
+    // and look at ids only on a hash match, which keeps a first-time id to one cache miss.
+    private long[] slots=new long[INITIAL_CAPACITY];
+    private String[] ids=new String[INITIAL_CAPACITY];
+    private int occupied;
+
+    DeduplicationWindow(long windowMs, int bucketCount)
     {
-        messages=new ArrayList<>();
+        this.bucketMs=Math.max(1, windowMs/bucketCount);
+        this.bucketCount=bucketCount;
+    }
 
+    // False if msgId was already claimed inside the window; otherwise claims it.
+    boolean claim(String msgId, long nowMs)
+    {
+        int bucket=(int)(nowMs/bucketMs);
+        int hash=hashOf(msgId);
+        int mask=slots.length-1;
+        int reusable=-1;
+        int i=indexOf(hash, mask);
+        for(long slot=slots[i];slot!=0;i=(i+1)&mask, slot=slots[i])
+        {
+            boolean live=isLive(slot, bucket);
+            if((int)(slot>>>32)==hash && ids[i].equals(msgId))
+            {
+                if(live)
+                    return false;
+                slots[i]=slotOf(hash, bucket);
+                return true;
+            }
+            if(!live && reusable<0)
+                reusable=i;
+        }
+        if(reusable>=0)
+            i=reusable;
+        else if(++occupied*2>slots.length)
+        {
+            resize(bucket);
+            insert(msgId, slotOf(hash, bucket));
+            return true;
+        }
+        ids[i]=msgId;
+        slots[i]=slotOf(hash, bucket);
+        return true;
     }
 
-    synchronized void addMessage(Msg message)
+    // Takes back a claim whose enqueue failed, so the producer's retry is accepted.
+    void release(String msgId, long nowMs)
     {
-        this.messages.add(message);
-        System.out.println("Moved to DLQ Message with "+message.getMsgId());
+        int hash=hashOf(msgId);
+        int mask=slots.length-1;
+        for(int i=indexOf(hash, mask);slots[i]!=0;i=(i+1)&mask)
+        {
+            if((int)(slots[i]>>>32)==hash && ids[i].equals(msgId))
+            {
+                slots[i]=slotOf(hash, (int)(nowMs/bucketMs)-bucketCount-1);
+                return;
+            }
+        }
+    }
+
+    // Claimed no more than bucketCount buckets ago, so kept for longer than the window. The int difference
+    // stays correct when bucket numbers wrap.
+    private boolean isLive(long slot, int bucket)
+    {
+        int age=bucket-(int) slot;
+        return age>=0 && age<=bucketCount;
+    }
+
+    // Never 0, so a used slot is never mistaken for an empty one.
+    private static int hashOf(String msgId)
+    {
+        int hash=msgId.hashCode();
+        return hash==0 ? 1 : hash;
+    }
+
+    private static long slotOf(int hash, int bucket)
+    {
+        return (long) hash<<32 | (bucket & 0xFFFFFFFFL);
     }
 
+    private static int indexOf(int hash, int mask)
+    {
+        int spread=hash*0x9E3779B9;
+        return (spread^spread>>>16) & mask;
+    }
+
+    // Keeps only live ids, in a table at most half full afterwards.
+    private void resize(int bucket)
+    {
+        String[] oldIds=ids;
+        long[] oldSlots=slots;
+        int live=0;
+        for(int i=0;i<oldSlots.length;i++)
+            if(oldSlots[i]!=0 && isLive(oldSlots[i], bucket))
+                live++;
+        int capacity=INITIAL_CAPACITY;
+        while(capacity<4*(live+1))
+            capacity<<=1;
+        ids=new String[capacity];
+        slots=new long[capacity];
+        occupied=0;
+        for(int i=0;i<oldSlots.length;i++)
+            if(oldSlots[i]!=0 && isLive(oldSlots[i], bucket))
+                insert(oldIds[i], oldSlots[i]);
+    }
+
+    private void insert(String msgId, long slot)
+    {
+        int mask=slots.length-1;
+        int i=indexOf((int)(slot>>>32), mask);
+        while(slots[i]!=0)
+            i=(i+1)&mask;
+        ids[i]=msgId;
+        slots[i]=slot;
+        occupied++;
+    }
 }
-class MessageQueue{
-    Deque<Msg> messageQueue;
-    Map<String, InFlightMessage> inFlightMessages;
-    // Can use priority queue or Delay Queue
-    // Can use Hierarchical Timing Wheel to reduce the time complexity of removing message from MAP.
-    int maxRetries;
-    long visibilityTimeoutInMs;
-    DeadLetterQueue dlq;
 
-    MessageQueue(int maxRetries, long visibilityTimeoutInMs)
+// N independent MessageQueues, each with its own deque, in-flight map and monitor, sharing one visibility timer.
+// A key always maps to the same partition, so per-key order is kept within it.
+class PartitionedMessageQueue{
+    final MessageQueue[] partitions;
+    final HierarchicalTimer visibilityTimer;
+    final NanosHistogram requeueLockNanos=new NanosHistogram();
+    // Which partition holds each in-flight message, so ack(msgId) touches only that partition's lock.
+    // The partitions maintain it, including for messages recovered from their commit logs.
+    private final Map<String, Integer> deliveredFrom=new ConcurrentHashMap<>();
+    private final AtomicInteger nextPartition=new AtomicInteger();
+    // Long-poll wakeups. Producers only touch the lock when someone is waiting; a waiter registers before it polls
+    // and only parks if no arrival was signalled since, so a message enqueued in between is never missed.
+    private final ReentrantLock arrivalLock=new ReentrantLock();
+    private final Condition arrived=arrivalLock.newCondition();
+    private final AtomicInteger waiters=new AtomicInteger();
+    private long arrivals;
+    // Null until enabled. Striped by message id, so producers of different ids rarely share a lock.
+    private volatile DeduplicationWindow[] deduplication;
+
+    // logDirectory may be null for an in-memory queue; otherwise each partition logs to its own subdirectory.
+    PartitionedMessageQueue(int partitionCount, int maxRetries, long visibilityTimeoutInMs, String logDirectory, int segmentSize)
     {
-        this.messageQueue=new ArrayDeque<>();
-        this.inFlightMessages=new HashMap<>();
-        this.maxRetries=maxRetries;
-        this.visibilityTimeoutInMs =visibilityTimeoutInMs;
-        this.dlq=new DeadLetterQueue();
+        if(partitionCount<1)
+            throw new IllegalArgumentException("partitionCount must be positive");
+        this.visibilityTimer=new HierarchicalTimer(1, 64);
+        this.partitions=new MessageQueue[partitionCount];
+        for(int i=0;i<partitionCount;i++)
+        {
+            CommitLog commitLog=logDirectory==null ? null
+                    : new CommitLog(Paths.get(logDirectory, "partition-"+i).toString(), segmentSize);
+            partitions[i]=new MessageQueue(maxRetries, visibilityTimeoutInMs, visibilityTimer, commitLog, i, deliveredFrom);
+            partitions[i].availabilityListener=this::signalArrival;
+            partitions[i].requeueLockNanos=requeueLockNanos;
+        }
     }
 
-    synchronized void enqueue(Msg message)
+    private void signalArrival()
+    {
+        if(waiters.get()==0)
+            return;
+        arrivalLock.lock();
+        try {
+            arrivals++;
+            arrived.signalAll();
+        } finally {
+            arrivalLock.unlock();
+        }
+    }
+
+    int getPartitionCount()
     {
-        messageQueue.addLast(message);
+        return partitions.length;
     }
 
-    synchronized List<Msg> poll(int batchSize)
+    int partitionFor(Msg message)
     {
-        List<Msg> results=new ArrayList<>();
-        while(!messageQueue.isEmpty()&& batchSize>0)
+        String key=message.getGroupId()!=null ? message.getGroupId() : message.getKey();
+        if(key==null)
+            return Math.floorMod(nextPartition.getAndIncrement(), partitions.length);
+        return Math.floorMod(key.hashCode(), partitions.length);
+    }
+
+    void enableDeduplication(long windowMs)
+    {
+        DeduplicationWindow[] stripes=new DeduplicationWindow[16];
+        for(int i=0;i<stripes.length;i++)
+            stripes[i]=new DeduplicationWindow(windowMs, 8);
+        deduplication=stripes;
+    }
+
+    // False if the message was rejected as a duplicate. The id is claimed under the stripe lock before the enqueue,
+    // so of two copies sent at once only one gets in, and released again if the enqueue fails, so a producer
+    // retrying after a failure is not dropped. The partition enqueue itself runs outside the stripe lock.
+    boolean enqueue(Msg message)
+    {
+        return enqueue(message, 0);
+    }
+
+    boolean enqueue(Msg message, long delayMs)
+    {
+        DeduplicationWindow[] stripes=deduplication;
+        if(stripes==null)
+        {
+            partitions[partitionFor(message)].enqueue(message, delayMs);
+            return true;
+        }
+        String msgId=message.getMsgId();
+        DeduplicationWindow stripe=stripes[Math.floorMod(msgId.hashCode(), stripes.length)];
+        boolean claimed;
+        synchronized (stripe)
         {
-            Msg message=messageQueue.removeFirst();
-            message.setDeliveryAttempt(message.getDeliveryAttempt()+1);
-            if(message.getDeliveryAttempt()>maxRetries)
+            claimed=stripe.claim(msgId, HierarchicalTimer.nowMs());
+        }
+        if(!claimed)
+        {
+            System.out.println("Rejected duplicate Message "+msgId);
+            return false;
+        }
+        boolean enqueued=false;
+        try {
+            partitions[partitionFor(message)].enqueue(message, delayMs);
+            enqueued=true;
+        } finally {
+            if(!enqueued)
+                synchronized (stripe)
+                {
+                    stripe.release(msgId, HierarchicalTimer.nowMs());
+                }
+        }
+        return true;
+    }
+
+    // Fills the batch from the assigned partition first, then steals from the others in order.
+    List<Msg> poll(int partition, int batchSize)
+    {
+        List<Msg> results=new ArrayList<>(Math.min(batchSize, 1024));
+        for(int i=0;i<partitions.length && results.size()<batchSize;i++)
+        {
+            int index=(partition+i)%partitions.length;
+            results.addAll(partitions[index].poll(batchSize-results.size()));
+        }
+        return results;
+    }
+
+    // For consumers without an assignment: start at a rotating partition so none of them is drained first.
+    List<Msg> poll(int batchSize)
+    {
+        return poll(Math.floorMod(nextPartition.getAndIncrement(), partitions.length), batchSize);
+    }
+
+    // Long poll: parks until minBatch messages are collected, or some messages were collected and lingerMs passed
+    // since the first of them, or maxWaitMs passed. Returns whatever it has at that point, possibly nothing.
+    List<Msg> poll(int partition, int batchSize, long maxWaitMs, int minBatch, long lingerMs) throws InterruptedException {
+        long deadline=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        long lingerDeadline=Long.MAX_VALUE;
+        int target=Math.min(Math.max(minBatch, 1), batchSize);
+        List<Msg> results=new ArrayList<>();
+        waiters.incrementAndGet();
+        try {
+            while(true)
             {
-                System.out.println("Maximum retry completed for the Message "+message.getMsgId());
-                dlq.addMessage(message);
-                continue;
+                long seen=currentArrivals();
+                results.addAll(poll(partition, batchSize-results.size()));
+                if(results.size()>=target)
+                    return results;
+                long now=System.nanoTime();
+                if(!results.isEmpty() && lingerDeadline==Long.MAX_VALUE)
+                    lingerDeadline=now+TimeUnit.MILLISECONDS.toNanos(lingerMs);
+                long wakeAt=Math.min(deadline, lingerDeadline);
+                if(now>=wakeAt)
+                    return results;
+                arrivalLock.lock();
+                try {
+                    if(arrivals==seen)
+                        arrived.awaitNanos(wakeAt-now);
+                } finally {
+                    arrivalLock.unlock();
+                }
             }
-            Instant deadline=Instant.now().plusMillis(visibilityTimeoutInMs);
-            inFlightMessages.put(message.getMsgId(),new InFlightMessage(message,deadline));
-            results.add(message);
-            batchSize--;
+        } finally {
+            waiters.decrementAndGet();
         }
-        System.out.println(results);
-        return results;
     }
 
-    synchronized void ack(String msgId)
+    private long currentArrivals()
+    {
+        arrivalLock.lock();
+        try {
+            return arrivals;
+        } finally {
+            arrivalLock.unlock();
+        }
+    }
+
+    void ack(String msgId)
     {
-        if(!inFlightMessages.containsKey(msgId))
+        Integer partition=deliveredFrom.get(msgId);
+        if(partition==null)
             throw new IllegalStateException("Invalid Ack for message id "+msgId);
-        inFlightMessages.remove(msgId);
+        partitions[partition].ack(msgId);
+    }
+
+    // -1 for a malformed handle or one that names a partition this queue does not have.
+    private int partitionOf(String receiptHandle)
+    {
+        int partition=MessageQueue.partitionOf(receiptHandle);
+        return partition<partitions.length ? partition : -1;
+    }
+
+    // Groups the receipts by partition so each partition's lock is taken once per batch.
+    // A malformed receipt fails on its own, like a stale one: it is not acked and not returned.
+    // Returns the ids that were acked.
+    List<String> ackBatch(Collection<String> receiptHandles)
+    {
+        List<List<String>> byPartition=new ArrayList<>(partitions.length);
+        for(int i=0;i<partitions.length;i++)
+            byPartition.add(new ArrayList<>());
+        for(String receiptHandle:receiptHandles)
+        {
+            int partition=partitionOf(receiptHandle);
+            if(partition>=0)
+                byPartition.get(partition).add(receiptHandle);
+        }
+        List<String> acked=new ArrayList<>(receiptHandles.size());
+        for(int i=0;i<partitions.length;i++)
+        {
+            if(byPartition.get(i).isEmpty())
+                continue;
+            acked.addAll(partitions[i].ackBatch(byPartition.get(i)));
+        }
+        return acked;
+    }
+
+    boolean changeVisibility(String receiptHandle, long extraMs)
+    {
+        int partition=partitionOf(receiptHandle);
+        return partition>=0 && partitions[partition].changeVisibility(receiptHandle, extraMs);
+    }
+
+    boolean setVisibility(String receiptHandle, long timeoutMs)
+    {
+        int partition=partitionOf(receiptHandle);
+        return partition>=0 && partitions[partition].setVisibility(receiptHandle, timeoutMs);
+    }
+
+    long getVisibilityTimeoutInMs()
+    {
+        return partitions[0].visibilityTimeoutInMs;
+    }
+
+    void requeueExpiredFlightMessage(long timeoutMs) throws InterruptedException {
+        visibilityTimer.advance(timeoutMs);
+    }
+
+    // Takes from the partitions in rotation, starting at a different one each call.
+    int redriveDeadLetters(int max)
+    {
+        int start=Math.floorMod(nextPartition.getAndIncrement(), partitions.length);
+        int moved=0;
+        for(int i=0;i<partitions.length && moved<max;i++)
+            moved+=partitions[(start+i)%partitions.length].redriveDeadLetters(max-moved);
+        return moved;
+    }
+
+    long getDeadLetterCount()
+    {
+        long count=0;
+        for(MessageQueue partition:partitions)
+            count+=partition.dlq.size();
+        return count;
+    }
+
+    long getRedriveDuplicates()
+    {
+        long count=0;
+        for(MessageQueue partition:partitions)
+            synchronized (partition)
+            {
+                count+=partition.redriveDuplicates;
+            }
+        return count;
+    }
+
+    void close() throws IOException {
+        for(MessageQueue partition:partitions)
+            partition.close();
+    }
+}
+
+class PrefetchedMsg{
+    final Msg message;
+    final long fetchedAtMs;
+    PrefetchedMsg(Msg message, long fetchedAtMs)
+    {
+        this.message=message;
+        this.fetchedAtMs=fetchedAtMs;
+    }
+}
+
+// A consumer with a credit window. A fetcher thread keeps up to creditWindow deliveries buffered locally by
+// long-polling ahead of time; every buffered or handed-out delivery holds a credit until it is acked or released.
+// Prefetched messages are ordinary in-flight deliveries, so the queue's accounting does not change.
+class PrefetchConsumer implements Closeable{
+    private final PartitionedMessageQueue messageQueue;
+    private final int partition;
+    private final long visibilityTimeoutMs;
+    private final Semaphore credits;
+    private final BlockingQueue<PrefetchedMsg> buffer=new LinkedBlockingQueue<>();
+    // Handed-out deliveries by receipt, with the deadline after which the queue takes them back anyway.
+    private final Map<String, Long> outstanding=new ConcurrentHashMap<>();
+    private final Thread fetcher;
+    private volatile boolean running=true;
+
+    PrefetchConsumer(PartitionedMessageQueue messageQueue, int partition, int creditWindow)
+    {
+        this.messageQueue=messageQueue;
+        this.partition=partition;
+        this.visibilityTimeoutMs=messageQueue.getVisibilityTimeoutInMs();
+        this.credits=new Semaphore(creditWindow);
+        this.fetcher=new Thread(this::fetchLoop, "prefetch-"+partition);
+        this.fetcher.setDaemon(true);
+        this.fetcher.start();
+    }
+
+    private void fetchLoop()
+    {
+        try {
+            while(running)
+            {
+                if(!credits.tryAcquire(Math.max(1, visibilityTimeoutMs/2), TimeUnit.MILLISECONDS))
+                {
+                    reclaimLapsed();
+                    continue;
+                }
+                int wanted=1+credits.drainPermits();
+                List<Msg> fetched=messageQueue.poll(partition, wanted, 200, 1, 0);
+                long now=HierarchicalTimer.nowMs();
+                for(Msg message:fetched)
+                    buffer.add(new PrefetchedMsg(message, now));
+                credits.release(wanted-fetched.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    synchronized void requeueExpiredFlightMessage(){
+    // A consumer that never acks or releases a delivery would otherwise hold its credit forever.
+    private void reclaimLapsed()
+    {
+        long now=HierarchicalTimer.nowMs();
+        for(Map.Entry<String, Long> entry:outstanding.entrySet())
+        {
+            if(entry.getValue()<now && outstanding.remove(entry.getKey())!=null)
+                credits.release();
+        }
+    }
 
-        Iterator<Map.Entry<String, InFlightMessage>> iterator=inFlightMessages.entrySet().iterator();
-        while(iterator.hasNext())
+    // Next buffered message, or null after maxWait. A message that sat in the buffer for more than half its
+    // visibility timeout gets a fresh one; if the queue already took it back, it is skipped.
+    Msg take(Duration maxWait) throws InterruptedException {
+        long deadline=System.nanoTime()+maxWait.toNanos();
+        while(true)
         {
-            InFlightMessage inFlightMessage=iterator.next().getValue();
-            if(inFlightMessage.getVisibilityDeadline().isBefore(Instant.now()))
+            PrefetchedMsg prefetched=buffer.poll(deadline-System.nanoTime(), TimeUnit.NANOSECONDS);
+            if(prefetched==null)
+                return null;
+            String receiptHandle=prefetched.message.getReceiptHandle();
+            long now=HierarchicalTimer.nowMs();
+            if(now-prefetched.fetchedAtMs<visibilityTimeoutMs/2)
+            {
+                outstanding.put(receiptHandle, prefetched.fetchedAtMs+visibilityTimeoutMs);
+                return prefetched.message;
+            }
+            if(messageQueue.setVisibility(receiptHandle, visibilityTimeoutMs))
             {
-                messageQueue.addLast(inFlightMessage.getMessage());
-                iterator.remove();
+                outstanding.put(receiptHandle, now+visibilityTimeoutMs);
+                return prefetched.message;
             }
+            credits.release();
+        }
+    }
+
+    void ack(Msg message)
+    {
+        ackBatch(Collections.singletonList(message));
+    }
+
+    // Returns a credit per message, whether or not its receipt was still current.
+    int ackBatch(List<Msg> messages)
+    {
+        List<String> receiptHandles=new ArrayList<>(messages.size());
+        int returned=0;
+        for(Msg message:messages)
+        {
+            receiptHandles.add(message.getReceiptHandle());
+            if(outstanding.remove(message.getReceiptHandle())!=null)
+                returned++;
         }
+        int acked=messageQueue.ackBatch(receiptHandles).size();
+        credits.release(returned);
+        return acked;
+    }
+
+    // Gives a message up without processing it: it becomes visible to other consumers right away.
+    void release(Msg message)
+    {
+        messageQueue.setVisibility(message.getReceiptHandle(), 0);
+        if(outstanding.remove(message.getReceiptHandle())!=null)
+            credits.release();
     }
 
+    // Buffered messages go straight back to the queue instead of waiting out their visibility timeout.
+    @Override
+    public void close()
+    {
+        running=false;
+        fetcher.interrupt();
+        try {
+            fetcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for(PrefetchedMsg prefetched:buffer)
+            messageQueue.setVisibility(prefetched.message.getReceiptHandle(), 0);
+        buffer.clear();
+    }
 }
 
+// One redriveDeadLetters(messagesPerSecond) run: moves a chunk per tick and cancels its own schedule once the
+// DLQs run dry. Whichever of the first empty tick and setHandle comes second does the cancel.
+class DeadLetterRedrive implements Runnable{
+    private final PartitionedMessageQueue messageQueue;
+    private final double perTick;
+    private double credit;
+    volatile ScheduledFuture<?> handle;
+    private volatile boolean drained;
+
+    DeadLetterRedrive(PartitionedMessageQueue messageQueue, double perTick)
+    {
+        this.messageQueue=messageQueue;
+        this.perTick=perTick;
+    }
+
+    void setHandle(ScheduledFuture<?> handle)
+    {
+        this.handle=handle;
+        if(drained)
+            handle.cancel(false);
+    }
+
+    @Override
+    public void run()
+    {
+        credit+=perTick;
+        int chunk=(int) credit;
+        if(chunk==0)
+            return;
+        credit-=chunk;
+        int taken;
+        try {
+            taken=messageQueue.redriveDeadLetters(chunk);
+        } catch (RuntimeException exception) {
+            // An exception would cancel the schedule without a trace; the failed batch is still in the DLQ, so the
+            // next tick retries it.
+            System.out.println("Dead letter redrive failed: "+exception);
+            return;
+        }
+        if(taken<chunk)
+        {
+            drained=true;
+            ScheduledFuture<?> scheduled=handle;
+            if(scheduled!=null)
+                scheduled.cancel(false);
+        }
+    }
+}
 class MessageQueueService{
-    MessageQueue messageQueue;
+    PartitionedMessageQueue messageQueue;
     ScheduledExecutorService scheduledExecutorService;
+    private final List<PrefetchConsumer> consumers=new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextPoller=new AtomicInteger();
+    private volatile boolean running=true;
     MessageQueueService(int maxRetries, long visibilityTimeoutMillis)
     {
-        this.messageQueue=new MessageQueue(maxRetries,visibilityTimeoutMillis);
-        this.scheduledExecutorService= Executors.newSingleThreadScheduledExecutor();
-        this.scheduledExecutorService.scheduleAtFixedRate(messageQueue::requeueExpiredFlightMessage,
-                1,1, TimeUnit.SECONDS);
+        this(1, maxRetries, visibilityTimeoutMillis);
+    }
+
+    MessageQueueService(int partitionCount, int maxRetries, long visibilityTimeoutMillis)
+    {
+        this(new PartitionedMessageQueue(partitionCount, maxRetries, visibilityTimeoutMillis, null, 0));
+    }
+
+    // Persistent mode: the queue is rebuilt from logDirectory on startup.
+    MessageQueueService(int maxRetries, long visibilityTimeoutMillis, String logDirectory, int segmentSize)
+    {
+        this(1, maxRetries, visibilityTimeoutMillis, logDirectory, segmentSize);
+    }
+
+    MessageQueueService(int partitionCount, int maxRetries, long visibilityTimeoutMillis, String logDirectory, int segmentSize)
+    {
+        this(new PartitionedMessageQueue(partitionCount, maxRetries, visibilityTimeoutMillis, logDirectory, segmentSize));
+    }
+
+    private MessageQueueService(PartitionedMessageQueue messageQueue)
+    {
+        this.messageQueue=messageQueue;
+        // One thread for the expiry loop, one for periodic jobs such as redrive.
+        this.scheduledExecutorService= Executors.newScheduledThreadPool(2);
+        this.scheduledExecutorService.submit(this::expiryLoop);
+    }
+
+    // Sleeps until the next visibility deadline, so redelivery happens within a millisecond of it.
+    private void expiryLoop()
+    {
+        while(running)
+        {
+            try {
+                messageQueue.requeueExpiredFlightMessage(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // False if deduplication is on and the same msgId was already added within the window.
+    boolean addMessage(Msg message)
+    {
+        return messageQueue.enqueue(message);
+    }
+
+    // Retry-later and reminders: the message stays invisible to consumers until the delay has passed.
+    boolean addMessage(Msg message, Duration delay)
+    {
+        return messageQueue.enqueue(message, delay.toMillis());
+    }
+
+    boolean addMessageAt(Msg message, Instant visibleAt)
+    {
+        return messageQueue.enqueue(message, Duration.between(Instant.now(), visibleAt).toMillis());
     }
 
-    void addMessage(Msg message)
+    // Producer retries re-send the same msgId; with this on, repeats within the window are dropped.
+    void enableDeduplication(Duration window)
     {
-        messageQueue.enqueue(message);
+        messageQueue.enableDeduplication(window.toMillis());
     }
 
     List<Msg> poll(int batchSize)
@@ -135,13 +2051,100 @@ class MessageQueueService{
        return messageQueue.poll(batchSize);
     }
 
+    // Consumer assigned to one partition; it steals from the others when its own runs short.
+    List<Msg> poll(int partition, int batchSize)
+    {
+        return messageQueue.poll(partition, batchSize);
+    }
+
+    // Long poll: waits up to maxWait for at least one message instead of returning an empty batch.
+    List<Msg> poll(int batchSize, Duration maxWait) throws InterruptedException {
+        return poll(batchSize, maxWait, 1, Duration.ZERO);
+    }
+
+    // Long poll that also lingers for the batch to reach minBatch once messages start arriving.
+    List<Msg> poll(int batchSize, Duration maxWait, int minBatch, Duration linger) throws InterruptedException {
+        return messageQueue.poll(Math.floorMod(nextPoller.getAndIncrement(), getPartitionCount()), batchSize,
+                maxWait.toMillis(), minBatch, linger.toMillis());
+    }
+
+    int getPartitionCount()
+    {
+        return messageQueue.getPartitionCount();
+    }
+
     void ack(String msgId)
     {
         messageQueue.ack(msgId);
     }
+
+    // Acks by Msg.getReceiptHandle(); returns how many were still current.
+    int ackBatch(Collection<String> receiptHandles)
+    {
+        return messageQueue.ackBatch(receiptHandles).size();
+    }
+
+    // For slow handlers: extends the visibility timeout of the delivery behind this receipt.
+    boolean changeVisibility(String receiptHandle, long extraMs)
+    {
+        return messageQueue.changeVisibility(receiptHandle, extraMs);
+    }
+
+    List<Msg> browseDeadLetters(int partition, long offset, int limit)
+    {
+        return messageQueue.partitions[partition].dlq.browse(offset, limit);
+    }
+
+    long getDeadLetterCount()
+    {
+        return messageQueue.getDeadLetterCount();
+    }
+
+    // Dead letters a redrive dropped because the same msgId had been enqueued again.
+    long getRedriveDuplicates()
+    {
+        return messageQueue.getRedriveDuplicates();
+    }
+
+    // Nanoseconds each visibility-timeout requeue held a partition lock.
+    NanosHistogram getRequeueLockHold()
+    {
+        return messageQueue.requeueLockNanos.snapshot();
+    }
+
+    // Moves dead letters back for another round of delivery at about messagesPerSecond, in small chunks every 10ms,
+    // so live producers and consumers keep getting the partition locks. Stops by itself when the DLQs are empty.
+    ScheduledFuture<?> redriveDeadLetters(int messagesPerSecond)
+    {
+        DeadLetterRedrive redrive=new DeadLetterRedrive(messageQueue, messagesPerSecond/100.0);
+        redrive.setHandle(scheduledExecutorService.scheduleAtFixedRate(redrive, 10, 10, TimeUnit.MILLISECONDS));
+        return redrive.handle;
+    }
+
+    // Prefetching consumer: up to creditWindow messages are fetched for it ahead of time.
+    PrefetchConsumer registerConsumer(int creditWindow)
+    {
+        return registerConsumer(Math.floorMod(nextPoller.getAndIncrement(), getPartitionCount()), creditWindow);
+    }
+
+    PrefetchConsumer registerConsumer(int partition, int creditWindow)
+    {
+        PrefetchConsumer consumer=new PrefetchConsumer(messageQueue, partition, creditWindow);
+        consumers.add(consumer);
+        return consumer;
+    }
+
     void shutDown()
     {
-        scheduledExecutorService.shutdown();
+        for(PrefetchConsumer consumer:consumers)
+            consumer.close();
+        running=false;
+        scheduledExecutorService.shutdownNow();
+        try {
+            messageQueue.close();
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
     }
 
 }
@@ -12,22 +12,40 @@ enum ChannelType{
 }
 interface Notification{
     String getNotificationMsg();
+
+    // Critical notifications (OTPs, security alerts) are never shed under BackPressurePolicy.ADAPTIVE.
+    default boolean isCritical()
+    {
+        return false;
+    }
 }
 class SimpleNotification implements Notification{
 
     String msg;
     int id;
+    boolean critical;
 
     SimpleNotification(String msg, int id)
+    {
+        this(msg, id, false);
+    }
+
+    SimpleNotification(String msg, int id, boolean critical)
     {
         this.msg=msg;
         this.id=id;
+        this.critical=critical;
     }
 
     @Override
     public String getNotificationMsg() {
         return this.msg;
     }
+
+    @Override
+    public boolean isCritical() {
+        return critical;
+    }
 }
 interface Channel{
     void sendNotification(Notification notification);
@@ -58,8 +76,25 @@ class EmailNotification implements Channel{
     }
 }
 
-class NotificationTask  {
+class NotificationTask implements AsyncTask{
+    Channel channel;
+    Notification notification;
 
+    NotificationTask(Channel channel, Notification notification)
+    {
+        this.channel=channel;
+        this.notification=notification;
+    }
+
+    @Override
+    public void execute() {
+        channel.sendNotification(notification);
+    }
+
+    @Override
+    public boolean isCritical() {
+        return notification.isCritical();
+    }
 }
 
 @Data
@@ -71,7 +106,7 @@ class AsyncNotification implements Channel{
     @Override
     public void sendNotification(Notification notification) {
         System.out.println("Calling Notification Async");
-        asyncExecutor.submit(()->channel.sendNotification(notification));
+        asyncExecutor.submit(new NotificationTask(channel, notification));
     }
 }
 
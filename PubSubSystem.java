@@ -4,13 +4,18 @@ import lombok.Getter;
 import lombok.Setter;
 
 import java.nio.channels.IllegalBlockingModeException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 @Data
 class Message {
@@ -37,6 +42,20 @@ interface Subscriber {
     String getId();
 
     void onMessage(Message message);
+
+    // Push delivery; offset is the message's position in the topic log, which orders it across all publishers.
+    default void onMessage(Message message, long offset) {
+        onMessage(message);
+    }
+}
+
+// What push workers receive. The offset travels here rather than on the Message, because one Message object may be
+// published to several topics; one Delivery is shared by all workers of a topic.
+@Getter
+@AllArgsConstructor
+class Delivery {
+    final long offset;
+    final Message message;
 }
 
 @Getter
@@ -58,17 +77,17 @@ class PrintSubscriber implements Subscriber {
 
 class SubscriberWorker implements Runnable {
     Subscriber subscriber;
-    BlockingQueue<Message> messagesQueue;
+    BlockingQueue<Delivery> messagesQueue;
     int retry = 0;
     volatile boolean running = true;
-    static final Message POISON = new Message("0", "__POISON__");
+    static final Delivery POISON = new Delivery(-1, new Message("0", "__POISON__"));
     SubscriberWorker(Subscriber subscriber) {
         this.subscriber = subscriber;
         this.messagesQueue = new LinkedBlockingQueue<>(50);
     }
 
-    void enqueue(Message message) {
-        if (!this.messagesQueue.offer(message)) {
+    void enqueue(Delivery delivery) {
+        if (!this.messagesQueue.offer(delivery)) {
             throw new RejectedExecutionException();
         }
     }
@@ -78,10 +97,10 @@ class SubscriberWorker implements Runnable {
     public void run() {
         while (running) {
             try {
-                Message message = messagesQueue.take();
-                if(message==POISON)
+                Delivery delivery = messagesQueue.take();
+                if(delivery==POISON)
                     break;
-                subscriber.onMessage(message);
+                subscriber.onMessage(delivery.getMessage(), delivery.getOffset());
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
@@ -98,26 +117,211 @@ class SubscriberWorker implements Runnable {
     }
 }
 
+// Limits are checked per whole chunk; 0 (or null for age) means no limit.
+@Getter
+@AllArgsConstructor
+class RetentionPolicy {
+    static final RetentionPolicy UNLIMITED = new RetentionPolicy(0, 0, null);
+    long maxMessages;
+    long maxBytes;
+    Duration maxAge;
+}
+
+class TopicChunk {
+    static final int SIZE = 1024;
+    static final long NO_TIMESTAMP = Long.MIN_VALUE;
+    final long baseOffset;
+    final AtomicReferenceArray<Message> entries = new AtomicReferenceArray<>(SIZE);
+    // Payload bytes and slots written so far; the chunk is complete once written reaches SIZE.
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicInteger written = new AtomicInteger();
+    // Newest message timestamp, for age retention; stays NO_TIMESTAMP while only SKIPPED or undated messages are in.
+    final AtomicLong newestEpochMillis = new AtomicLong(NO_TIMESTAMP);
+
+    TopicChunk(long baseOffset) {
+        this.baseOffset = baseOffset;
+    }
+}
+
+// Append-only log of fixed-size chunks. Appending never copies messages, and an offset maps to its chunk by division,
+// so both are O(1). Retention drops whole chunks from the head.
+// Publishers reserve offsets with one getAndIncrement and fill their slots concurrently; readers take no lock and
+// stop at the first slot that is reserved but not written yet, so nothing is skipped. A chunk directory snapshot
+// stays readable even after retention replaces the directory.
+class TopicLog {
+    // Fills the slot of an append that failed after reserving its offset; readers step over it.
+    static final Message SKIPPED = new Message("", null);
+    private final RetentionPolicy retention;
+    private final AtomicLong nextOffset = new AtomicLong();
+    // Retained chunks, oldest first; replaced by CAS, never modified, when a chunk is added or dropped.
+    private final AtomicReference<TopicChunk[]> chunks = new AtomicReference<>(new TopicChunk[]{new TopicChunk(0)});
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    TopicLog(RetentionPolicy retention) {
+        this.retention = retention;
+    }
+
+    long append(Message message) {
+        long offset = nextOffset.getAndIncrement();
+        boolean written = false;
+        try {
+            int bytes = encodedLength(message.getPayload());
+            TopicChunk chunk = chunkFor(offset);
+            chunk.entries.set((int) (offset - chunk.baseOffset), message);
+            chunk.bytes.addAndGet(bytes);
+            if (message.getTimeStamp() != null)
+                chunk.newestEpochMillis.accumulateAndGet(message.getTimeStamp().toEpochMilli(), Math::max);
+            retainedBytes.addAndGet(bytes);
+            chunk.written.incrementAndGet();
+            written = true;
+        } finally {
+            // Readers stop at an unwritten slot, so the reserved one is filled even when this append fails.
+            if (!written)
+                skip(offset);
+        }
+        applyRetention();
+        return offset;
+    }
+
+    private void skip(long offset) {
+        TopicChunk chunk = chunkFor(offset);
+        if (chunk.entries.compareAndSet((int) (offset - chunk.baseOffset), null, SKIPPED))
+            chunk.written.incrementAndGet();
+    }
+
+    // UTF-8 size of a payload without encoding it; 0 for null.
+    static int encodedLength(String text) {
+        if (text == null)
+            return 0;
+        int bytes = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80)
+                bytes += c < 0x800 || Character.isSurrogate(c) ? 1 : 2;
+        }
+        return bytes;
+    }
+
+    // Adds chunks until one covers the offset. The offset's own chunk cannot be dropped meanwhile, as it is incomplete.
+    private TopicChunk chunkFor(long offset) {
+        while (true) {
+            TopicChunk[] directory = chunks.get();
+            TopicChunk tail = directory[directory.length - 1];
+            if (offset < tail.baseOffset + TopicChunk.SIZE)
+                return directory[(int) ((offset - directory[0].baseOffset) / TopicChunk.SIZE)];
+            TopicChunk[] grown = Arrays.copyOf(directory, directory.length + 1);
+            grown[directory.length] = new TopicChunk(tail.baseOffset + TopicChunk.SIZE);
+            chunks.compareAndSet(directory, grown);
+        }
+    }
+
+    // Only complete chunks are dropped, and never the last one.
+    private void applyRetention() {
+        while (true) {
+            TopicChunk[] directory = chunks.get();
+            TopicChunk head = directory[0];
+            if (directory.length == 1 || head.written.get() < TopicChunk.SIZE || !expired(head))
+                return;
+            if (chunks.compareAndSet(directory, Arrays.copyOfRange(directory, 1, directory.length)))
+                retainedBytes.addAndGet(-head.bytes.get());
+        }
+    }
+
+    private boolean expired(TopicChunk head) {
+        if (retention.getMaxMessages() > 0
+                && nextOffset.get() - (head.baseOffset + TopicChunk.SIZE) >= retention.getMaxMessages())
+            return true;
+        if (retention.getMaxBytes() > 0 && retainedBytes.get() - head.bytes.get() >= retention.getMaxBytes())
+            return true;
+        // A chunk without any dated message is left to the count and byte limits.
+        long newest = head.newestEpochMillis.get();
+        return retention.getMaxAge() != null && newest != TopicChunk.NO_TIMESTAMP
+                && Instant.ofEpochMilli(newest).isBefore(Instant.now().minus(retention.getMaxAge()));
+    }
+
+    // Oldest offset still retained.
+    long startOffset() {
+        return chunks.get()[0].baseOffset;
+    }
+
+    // Next offset to be reserved; slots just below it may still be in flight.
+    long endOffset() {
+        return nextOffset.get();
+    }
+
+    long size() {
+        return endOffset() - startOffset();
+    }
+
+    // Null when the offset was dropped by retention or is not written yet.
+    Message get(long offset) {
+        TopicChunk[] directory = chunks.get();
+        int index = (int) ((offset - directory[0].baseOffset) / TopicChunk.SIZE);
+        if (offset < directory[0].baseOffset || index >= directory.length)
+            return null;
+        Message message = directory[index].entries.get((int) (offset - directory[index].baseOffset));
+        return message == SKIPPED ? null : message;
+    }
+
+    // Copies messages from offset (or the oldest retained one, if that is later) into out, up to the first slot that
+    // is not written yet; returns the offset to read from next time.
+    long readFrom(long offset, List<Message> out) {
+        long end = nextOffset.get();
+        TopicChunk[] directory = chunks.get();
+        long next = Math.max(offset, directory[0].baseOffset);
+        while (next < end) {
+            int index = (int) ((next - directory[0].baseOffset) / TopicChunk.SIZE);
+            if (index >= directory.length)
+                break;
+            Message message = directory[index].entries.get((int) (next - directory[index].baseOffset));
+            if (message == null)
+                break;
+            if (message != SKIPPED)
+                out.add(message);
+            next++;
+        }
+        return next;
+    }
+}
+
 @Data
 class Topic {
     String name;
     Map<String, SubscriberWorker> pushSubscriber;
-    Map<String, Integer> pullSubscriber;
-    List<Message> messages;
+    // Immutable copy of pushSubscriber's workers that publish iterates without a lock; rebuilt on every change.
+    volatile List<SubscriberWorker> pushSnapshot = List.of();
+    // Next offset to read for each pull subscriber.
+    Map<String, Long> pullSubscriber;
+    TopicLog messages;
 
     Topic(String name) {
+        this(name, RetentionPolicy.UNLIMITED);
+    }
+
+    Topic(String name, RetentionPolicy retention) {
         this.name = name;
         this.pullSubscriber = new ConcurrentHashMap<>();
         this.pushSubscriber = new ConcurrentHashMap<>();
-        this.messages = new CopyOnWriteArrayList<>();
+        this.messages = new TopicLog(retention);
+    }
+
+    // Subscribe and unsubscribe are rare, so they serialize on the topic monitor; publish never takes it.
+    synchronized boolean addPushSubscriber(SubscriberWorker subscriberWorker) {
+        if (this.pushSubscriber.putIfAbsent(subscriberWorker.subscriber.getId(), subscriberWorker) != null)
+            return false;
+        this.pushSnapshot = List.copyOf(this.pushSubscriber.values());
+        return true;
     }
 
-    void addPushSubscriber(SubscriberWorker subscriberWorker) {
-        this.pushSubscriber.putIfAbsent(subscriberWorker.subscriber.getId(), subscriberWorker);
+    synchronized SubscriberWorker removePushSubscriber(String subscriberId) {
+        SubscriberWorker removed = this.pushSubscriber.remove(subscriberId);
+        if (removed != null)
+            this.pushSnapshot = List.copyOf(this.pushSubscriber.values());
+        return removed;
     }
 
     void addPullSubscriber(Subscriber subscriber) {
-        this.pullSubscriber.putIfAbsent(subscriber.getId(), 0);
+        this.pullSubscriber.putIfAbsent(subscriber.getId(), messages.startOffset());
     }
 }
 
@@ -140,9 +344,13 @@ class PubSubService {
     }
 
     void createTopic(String name) {
+        createTopic(name, RetentionPolicy.UNLIMITED);
+    }
+
+    void createTopic(String name, RetentionPolicy retention) {
         if (topics.get(name) != null)
             System.out.println("Topic Already Exist with same Name");
-        Topic topic = new Topic(name);
+        Topic topic = new Topic(name, retention);
         topics.putIfAbsent(topic.name, topic);
     }
 
@@ -150,44 +358,65 @@ class PubSubService {
         Topic topic = topics.get(topicName);
         if (DeliveryMode.PUSH == deliveryMode) {
             SubscriberWorker subscriberWorker = new SubscriberWorker(subscriber);
-            topic.addPushSubscriber(subscriberWorker);
-            executors.submit(subscriberWorker);
+            if (topic.addPushSubscriber(subscriberWorker))
+                executors.submit(subscriberWorker);
         } else {
             topic.addPullSubscriber(subscriber);
         }
     }
 
+    void removeSubscriber(String subscriberId, String topicName) {
+        Topic topic = topics.get(topicName);
+        if (topic == null)
+            throw new IllegalArgumentException("Topic Not Found");
+        SubscriberWorker worker = topic.removePushSubscriber(subscriberId);
+        if (worker != null) {
+            // A full queue rejects the poison; running=false still stops the worker after its next message.
+            worker.shutdown();
+            worker.messagesQueue.offer(SubscriberWorker.POISON);
+        }
+        topic.getPullSubscriber().remove(subscriberId);
+    }
+
     void publish(String topicName, Message message) {
         if(!isPublishingEnabled)
             throw new IllegalBlockingModeException();
         Topic topic = topics.get(topicName);
-        synchronized (topic) {
-            topic.messages.add(message);
-            for (SubscriberWorker worker : topic.getPushSubscriber().values()) {
-                try {
-                    worker.enqueue(message);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
+        // No topic lock: the log hands out offsets atomically and the subscriber snapshot is immutable.
+        // Workers receive messages in each publisher's order; the log offset in the Delivery gives the topic-wide order.
+        Delivery delivery = new Delivery(topic.messages.append(message), message);
+        // A full worker queue is reported after the others have been offered the message, not instead of it.
+        List<String> rejected = null;
+        for (SubscriberWorker worker : topic.getPushSnapshot()) {
+            try {
+                worker.enqueue(delivery);
+            } catch (RejectedExecutionException e) {
+                if (rejected == null)
+                    rejected = new ArrayList<>();
+                rejected.add(worker.subscriber.getId());
             }
         }
+        if (rejected != null)
+            throw new RejectedExecutionException("Subscriber queues full: " + rejected);
     }
 
     List<Message> poll(String topicName, Subscriber subscriber) {
         Topic topic = topics.get(topicName);
         if(topic == null)
             throw new IllegalArgumentException("Topic Not Found");
-        Integer offset = topic.getPullSubscriber().get(subscriber.getId());
-
+        // Reads the log without any lock, then moves the subscriber's offset by CAS; a poll of the same subscriber
+        // that got there first makes this one read again from the new offset, so no message is returned twice.
+        Map<String, Long> offsets = topic.getPullSubscriber();
         List<Message> result = new ArrayList<>();
-        synchronized (topic) {
-            while (offset < topic.messages.size()) {
-                result.add(topic.messages.get(offset));
-                offset++;
-            }
-            topic.getPullSubscriber().put(subscriber.getId(), offset);
+        while (true) {
+            Long offset = offsets.get(subscriber.getId());
+            if (offset == null)
+                throw new IllegalArgumentException("Subscriber Not Found");
+            long next = topic.messages.readFrom(offset, result);
+            if (next == offset || offsets.replace(subscriber.getId(), offset, next))
+                return result;
+            result.clear();
         }
-        return result;
     }
 
     void shutDown() throws InterruptedException {
@@ -195,7 +424,7 @@ class PubSubService {
         isPublishingEnabled=false;
         for(Topic topic: topics.values())
         {
-            for(SubscriberWorker subscriberWorker:topic.getPushSubscriber().values())
+            for(SubscriberWorker subscriberWorker:topic.getPushSnapshot())
                 subscriberWorker.enqueue(SubscriberWorker.POISON);
         }
         executors.shutdown();